@@ -0,0 +1,314 @@
+package bench;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking facade of a cache: operations are run by a pool of I/O threads owned by the facade, and callers
+ * get a {@link CompletableFuture}. Futures are completed on the I/O threads.
+ * <p>
+ * Gets submitted while the previous ones are waiting or running are read together in a single pass, in key order
+ * when keys are comparable, each distinct key being read once.
+ * </p>
+ * <p>
+ * The pool belongs to the cache which stores the entries, behind the decorators of the backend: facades on the
+ * same storage share its pool, which is sized by the first one. They must also share the same backend, which is
+ * closed with the pool by the last facade closed. A {@link PersisitItCache} which is not concurrent is given a
+ * single I/O thread, as its temporary volume does not support concurrent writers.
+ * </p>
+ * <p>
+ * The pool has a bounded queue: operations submitted when it is full, or once the facade is closed, fail with a
+ * {@link RejectedExecutionException}.
+ * </p>
+ * <p>
+ * Operations are not ordered with each other: a get submitted after a put may not see it, unless it is chained
+ * to the future of the put.
+ * </p>
+ */
+public class AsyncCache<K, V extends Serializable> {
+
+  private static final int DEFAULT_QUEUE_SIZE = 10_000;
+  private static final int MAX_BATCH_SIZE = 1_000;
+  private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+  private static final Map<Cache<?, ?>, SharedPool> POOLS = new IdentityHashMap<>();
+
+  private final Cache<K, V> backend;
+  private final Cache<?, ?> storage;
+  private final SharedPool pool;
+  private final Object inFlightLock = new Object();
+  private int inFlight;
+  private boolean closed;
+  private final Queue<PendingGet<K, V>> pendingGets = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean();
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      drainGets();
+    }
+  };
+
+  public AsyncCache(Cache<K, V> backend, int threads) {
+    this(backend, threads, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * @param threads number of I/O threads, reduced to one if the backend does not support concurrent writers. Ignored
+   *                when the storage of the backend already has a pool.
+   * @param queueSize maximum number of operations waiting for an I/O thread, ignored as well in that case
+   * @throws IllegalArgumentException if another facade is open on the same storage through another backend
+   */
+  public AsyncCache(Cache<K, V> backend, int threads, int queueSize) {
+    this.backend = backend;
+    this.storage = Caches.storage(backend);
+    this.pool = acquirePool(backend, storage, Caches.isSingleWriter(storage) ? 1 : threads, queueSize);
+  }
+
+  private static synchronized SharedPool acquirePool(Cache<?, ?> backend, Cache<?, ?> storage, int poolSize, int queueSize) {
+    SharedPool pool = POOLS.get(storage);
+    if (pool == null) {
+      pool = new SharedPool(backend, poolSize, queueSize);
+      POOLS.put(storage, pool);
+    } else if (pool.backend != backend) {
+      throw new IllegalArgumentException("Storage is already used by another backend: " + storage);
+    }
+    pool.users++;
+    return pool;
+  }
+
+  /**
+   * @return true if the facade was the last user of the pool, which is then stopped
+   */
+  private static synchronized boolean releasePool(Cache<?, ?> storage, SharedPool pool) {
+    pool.users--;
+    if (pool.users == 0) {
+      POOLS.remove(storage);
+      pool.executor.shutdown();
+      return true;
+    }
+    return false;
+  }
+
+  public int threads() {
+    return pool.executor.getMaximumPoolSize();
+  }
+
+  public CompletableFuture<V> get(K key) {
+    PendingGet<K, V> get = new PendingGet<>(key);
+    pendingGets.add(get);
+    if (drainScheduled.compareAndSet(false, true)) {
+      try {
+        execute(drain);
+      } catch (RejectedExecutionException e) {
+        drainScheduled.set(false);
+        failPendingGets(e);
+      }
+    }
+    return get.future;
+  }
+
+  public CompletableFuture<Boolean> containsKey(final K key) {
+    return submit(new Operation<Boolean>() {
+      @Override
+      Boolean run() {
+        return backend.containsKey(key);
+      }
+    });
+  }
+
+  public CompletableFuture<Void> put(final K key, final V value) {
+    return submit(new Operation<Void>() {
+      @Override
+      Void run() {
+        backend.put(key, value);
+        return null;
+      }
+    });
+  }
+
+  public CompletableFuture<Void> putAll(final Map<K, V> entries) {
+    return submit(new Operation<Void>() {
+      @Override
+      Void run() {
+        backend.putAll(entries);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Waits for the operations submitted through this facade. The last facade of the storage then closes the backend,
+   * the other facades on the storage keep using it.
+   */
+  public void close() {
+    synchronized (inFlightLock) {
+      closed = true;
+      long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+      try {
+        while (inFlight > 0) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new IllegalStateException("Fail to complete the pending operations of the cache");
+          }
+          TimeUnit.NANOSECONDS.timedWait(inFlightLock, remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while closing the cache", e);
+      }
+    }
+    if (releasePool(storage, pool)) {
+      backend.close();
+    }
+  }
+
+  /**
+   * Runs the task on the pool, counted as in flight until it completes
+   *
+   * @throws RejectedExecutionException if the queue of the pool is full or the facade is closed
+   */
+  private void execute(final Runnable task) {
+    synchronized (inFlightLock) {
+      if (closed) {
+        throw new RejectedExecutionException("Cache is closed");
+      }
+      inFlight++;
+    }
+    try {
+      pool.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            completed();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      completed();
+      throw e;
+    }
+  }
+
+  private void completed() {
+    synchronized (inFlightLock) {
+      inFlight--;
+      if (inFlight == 0) {
+        inFlightLock.notifyAll();
+      }
+    }
+  }
+
+  private <T> CompletableFuture<T> submit(final Operation<T> operation) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            future.complete(operation.run());
+          } catch (Throwable e) {
+            future.completeExceptionally(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Reads a batch of the pending gets. If gets remain, another pass is scheduled first, so that other I/O threads
+   * can take them.
+   */
+  private void drainGets() {
+    // gets added from now on need another pass
+    drainScheduled.set(false);
+    Map<K, List<CompletableFuture<V>>> batch = new LinkedHashMap<>();
+    for (PendingGet<K, V> get = pendingGets.poll(); get != null; get = batch.size() < MAX_BATCH_SIZE ? pendingGets.poll() : null) {
+      List<CompletableFuture<V>> futures = batch.get(get.key);
+      if (futures == null) {
+        futures = new ArrayList<>(1);
+        batch.put(get.key, futures);
+      }
+      futures.add(get.future);
+    }
+    if (!pendingGets.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+      try {
+        execute(drain);
+      } catch (RejectedExecutionException e) {
+        drainScheduled.set(false);
+        failPendingGets(e);
+      }
+    }
+    for (K key : Keys.sorted(batch.keySet())) {
+      List<CompletableFuture<V>> futures = batch.get(key);
+      try {
+        V value = backend.get(key);
+        for (CompletableFuture<V> future : futures) {
+          future.complete(value);
+        }
+      } catch (Throwable e) {
+        for (CompletableFuture<V> future : futures) {
+          future.completeExceptionally(e);
+        }
+      }
+    }
+  }
+
+  private void failPendingGets(RejectedExecutionException e) {
+    for (PendingGet<K, V> get = pendingGets.poll(); get != null; get = pendingGets.poll()) {
+      get.future.completeExceptionally(e);
+    }
+  }
+
+  private abstract static class Operation<T> {
+    abstract T run();
+  }
+
+  private static class PendingGet<K, V> {
+    private final K key;
+    private final CompletableFuture<V> future = new CompletableFuture<>();
+
+    private PendingGet(K key) {
+      this.key = key;
+    }
+  }
+
+  private static class SharedPool {
+    private final Cache<?, ?> backend;
+    private final ThreadPoolExecutor executor;
+    private int users;
+
+    private SharedPool(Cache<?, ?> backend, int poolSize, int queueSize) {
+      this.backend = backend;
+      final String prefix = "async-cache-" + POOL_COUNT.incrementAndGet() + "-";
+      executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Token stream of a single term made of the given bytes, to index keys that are not text without any analysis
+ * nor UTF-8 conversion.
+ */
+final class BinaryTokenStream extends TokenStream {
+
+  private final BytesTermAttribute term = new BytesTermAttribute();
+  private boolean available = true;
+
+  BinaryTokenStream(BytesRef bytes) {
+    addAttributeImpl(term);
+    term.bytes = bytes;
+  }
+
+  @Override
+  public boolean incrementToken() {
+    if (available) {
+      clearAttributes();
+      available = false;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void reset() {
+    available = true;
+  }
+
+  private static final class BytesTermAttribute extends AttributeImpl implements TermToBytesRefAttribute {
+    private BytesRef bytes;
+
+    @Override
+    public int fillBytesRef() {
+      return bytes.hashCode();
+    }
+
+    @Override
+    public BytesRef getBytesRef() {
+      return bytes;
+    }
+
+    @Override
+    public void clear() {
+      // the term is the same for the whole stream
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+      ((BytesTermAttribute) target).bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of missing and present keys, with or without a Bloom filter in front of the backend. The
+ * {@code lucene-segments} backend is Lucene with a filter per segment instead.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BloomFilterBenchmark {
+
+  private static final int BATCH_SIZE = 10_000;
+
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"persistit", "lucene", "lucene-segments", "mapdb"})
+    public String backend;
+
+    @Param({"false", "true"})
+    public boolean filtered;
+
+    @Param({"0.01"})
+    public double fpp;
+
+    @Param({"100000"})
+    public int count;
+
+    @Param({"100"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+
+    @Setup(Level.Trial)
+    public void load() {
+      String data = CacheBenchmark.generateData(dataSize);
+      Cache<String, Measure> backendCache = "lucene-segments".equals(backend) ? new LuceneCache<>(Measure.class, fpp)
+        : CacheBenchmark.newCache(backend);
+      cache = filtered ? new BloomFilterCache<>(backendCache, count, fpp) : backendCache;
+      Map<String, Measure> batch = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        batch.put("key" + i, new Measure("key" + i, data, (long) i, new Date()));
+        if (batch.size() == BATCH_SIZE) {
+          cache.putAll(batch);
+          batch.clear();
+        }
+      }
+      cache.putAll(batch);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      if (cache instanceof BloomFilterCache) {
+        System.out.println(cache);
+      }
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public boolean containsMissingKey(LoadedCache state) {
+    return state.cache.containsKey("missing" + ThreadLocalRandom.current().nextInt(state.count));
+  }
+
+  @Benchmark
+  public Measure getPresentKey(LoadedCache state) {
+    return state.cache.get("key" + ThreadLocalRandom.current().nextInt(state.count));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(BloomFilterBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
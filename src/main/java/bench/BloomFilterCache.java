@@ -0,0 +1,184 @@
+package bench;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bloom filter of the keys in front of a cache, so that {@link #get(Object)} and {@link #containsKey(Object)} of
+ * a missing key usually return without reading the backend.
+ * <p>
+ * All the writes of the backend must go through this cache, otherwise lookups of the keys written behind its back
+ * miss. The keys already in the backend, when it is reopened for instance, are loaded with
+ * {@link #rebuild(Iterable)}.
+ * </p>
+ */
+public class BloomFilterCache<K, V extends Serializable> implements Cache<K, V>, CacheDecorator, Instrumented {
+
+  private final Cache<K, V> backend;
+  private final long expectedEntries;
+  private final double fpp;
+  private volatile BloomFilter filter;
+  private volatile BloomFilter rebuilding;
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong negatives = new AtomicLong();
+  private final AtomicLong falsePositives = new AtomicLong();
+
+  /**
+   * @param expectedEntries number of keys the filter is sized for
+   * @param fpp target false positive rate, in ]0, 1[
+   */
+  public BloomFilterCache(Cache<K, V> backend, long expectedEntries, double fpp) {
+    this.backend = backend;
+    this.expectedEntries = expectedEntries;
+    this.fpp = fpp;
+    this.filter = new BloomFilter(expectedEntries, fpp);
+  }
+
+  /**
+   * Replaces the filter by one of the given keys, which are usually the ones of a backend scan. Writes done during
+   * the scan are added to both filters, so that none of them is missed.
+   */
+  public BloomFilterCache<K, V> rebuild(Iterable<? extends K> keys) {
+    BloomFilter rebuilt = new BloomFilter(expectedEntries, fpp);
+    rebuilding = rebuilt;
+    try {
+      for (K key : keys) {
+        rebuilt.add(key);
+      }
+      filter = rebuilt;
+    } finally {
+      rebuilding = null;
+    }
+    return this;
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    if (backend instanceof Instrumented) {
+      ((Instrumented) backend).setListener(listener);
+    }
+  }
+
+  @Override
+  public Cache<K, V> backend() {
+    return backend;
+  }
+
+  @Override
+  public void close() {
+    backend.close();
+  }
+
+  /**
+   * The key is added to the filter once written, so that a lookup never misses a key the backend has
+   */
+  @Override
+  public BloomFilterCache<K, V> put(K key, V value) {
+    backend.put(key, value);
+    add(key);
+    return this;
+  }
+
+  @Override
+  public BloomFilterCache<K, V> putAll(Map<K, V> entries) {
+    backend.putAll(entries);
+    for (K key : entries.keySet()) {
+      add(key);
+    }
+    return this;
+  }
+
+  /**
+   * The filter being rebuilt is read first: if there is none, either the rebuild has not started and its scan sees
+   * the write, or it is over and the current filter is the rebuilt one
+   */
+  private void add(K key) {
+    long hash = BloomFilter.hash(key);
+    BloomFilter rebuilt = rebuilding;
+    filter.addHash(hash);
+    if (rebuilt != null) {
+      rebuilt.addHash(hash);
+    }
+  }
+
+  @Override
+  public Iterable<V> values() {
+    return backend.values();
+  }
+
+  @Override
+  public Iterable<Map.Entry<K, V>> range(K fromKey, K toKey) {
+    return backend.range(fromKey, toKey);
+  }
+
+  @Override
+  public Iterable<Map.Entry<K, V>> prefix(String prefix) {
+    return backend.prefix(prefix);
+  }
+
+  @Override
+  public V get(K key) {
+    if (!mightContain(key)) {
+      return null;
+    }
+    V value = backend.get(key);
+    if (value == null) {
+      falsePositives.incrementAndGet();
+    }
+    return value;
+  }
+
+  @Override
+  public boolean containsKey(K key) {
+    if (!mightContain(key)) {
+      return false;
+    }
+    boolean found = backend.containsKey(key);
+    if (!found) {
+      falsePositives.incrementAndGet();
+    }
+    return found;
+  }
+
+  private boolean mightContain(K key) {
+    lookups.incrementAndGet();
+    if (filter.mightContain(key)) {
+      return true;
+    }
+    negatives.incrementAndGet();
+    return false;
+  }
+
+  public long lookupCount() {
+    return lookups.get();
+  }
+
+  /**
+   * Lookups answered by the filter alone
+   */
+  public long negativeCount() {
+    return negatives.get();
+  }
+
+  /**
+   * Lookups of missing keys that the filter let through to the backend
+   */
+  public long falsePositiveCount() {
+    return falsePositives.get();
+  }
+
+  /**
+   * Part of the lookups of missing keys that went to the backend
+   */
+  public double falsePositiveRate() {
+    long missing = negatives.get() + falsePositives.get();
+    return missing == 0 ? 0.0 : (double) falsePositives.get() / missing;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("lookups=%d negatives=%d falsePositives=%d falsePositiveRate=%.4f filter=[%s]", lookupCount(), negativeCount(),
+      falsePositiveCount(), falsePositiveRate(), filter);
+  }
+}
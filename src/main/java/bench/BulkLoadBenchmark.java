@@ -0,0 +1,121 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.AbstractMap;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to fill an empty cache with {@link BulkLoadCache#bulkLoad(Iterator, int)}, by number of worker threads.
+ * Entries are created while they are consumed, as they would be read from another source.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BulkLoadBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class EmptyCache {
+
+    @Param({"persistit", "persistit-concurrent", "lucene"})
+    public String backend;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+    BulkLoadCache<String, Measure> loader;
+    String data;
+
+    @Setup(Level.Trial)
+    public void generate() {
+      data = CacheBenchmark.generateData(dataSize);
+    }
+
+    @Setup(Level.Iteration)
+    @SuppressWarnings("unchecked")
+    public void open() {
+      cache = CacheBenchmark.newCache(backend);
+      loader = (BulkLoadCache<String, Measure>) cache;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public long bulkLoad(EmptyCache state) {
+    long loaded = state.loader.bulkLoad(new MeasureIterator(state.count, state.data), state.threads);
+    if (loaded != state.count) {
+      throw new IllegalStateException("Loaded " + loaded + " entries instead of " + state.count);
+    }
+    return loaded;
+  }
+
+  private static class MeasureIterator implements Iterator<Map.Entry<String, Measure>> {
+    private final long count;
+    private final String data;
+    private long next = 0;
+
+    private MeasureIterator(long count, String data) {
+      this.count = count;
+      this.data = data;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < count;
+    }
+
+    @Override
+    public Map.Entry<String, Measure> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      long i = next++;
+      return new AbstractMap.SimpleImmutableEntry<>("key" + i, new Measure("key" + i, data, i, new Date()));
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(BulkLoadBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
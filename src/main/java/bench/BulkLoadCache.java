@@ -0,0 +1,20 @@
+package bench;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Loading of many entries by several threads, for the initial fill of a cache.
+ */
+public interface BulkLoadCache<K, V extends Serializable> {
+
+  /**
+   * Serializes and stores the entries from a pool of worker threads. The iterator is only consumed by the calling
+   * thread, which blocks when the workers are behind. Entries are visible to readers once the method returns.
+   *
+   * @return the number of entries loaded
+   */
+  long bulkLoad(Iterator<Map.Entry<K, V>> entries, int threads);
+
+}
@@ -0,0 +1,165 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Pipeline behind {@link BulkLoadCache#bulkLoad(Iterator, int)}: the calling thread reads the entries and hands them
+ * in batches to worker threads through a bounded queue, so that no more than a few batches per worker are held in
+ * memory. Each worker thread gets its own {@link Worker}, for the state that must not be shared.
+ * <p>
+ * When a worker fails, the other workers drain the queue without loading anything and the first failure is thrown
+ * to the caller. When reading the entries fails, the workers stop as well, then the failure of the entries is thrown.
+ * </p>
+ */
+abstract class BulkLoader<K, V> {
+
+  private static final int BATCH_SIZE = 256;
+  private static final int BATCHES_PER_THREAD = 2;
+  private static final List<Map.Entry<?, ?>> END = new ArrayList<>();
+
+  private final int threads;
+  private final BlockingQueue<List<Map.Entry<?, ?>>> queue;
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  BulkLoader(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one thread is needed: " + threads);
+    }
+    this.threads = threads;
+    this.queue = new ArrayBlockingQueue<>(threads * BATCHES_PER_THREAD);
+  }
+
+  /**
+   * Called once by each worker thread, before its first entry
+   */
+  abstract Worker<K, V> newWorker() throws Exception;
+
+  abstract static class Worker<K, V> {
+    abstract void load(K key, V value) throws Exception;
+
+    /**
+     * Called once the worker thread has no more entries to load, even after a failure
+     */
+    void finish() throws Exception {
+      // nothing to release by default
+    }
+  }
+
+  long load(Iterator<Map.Entry<K, V>> entries) {
+    List<Thread> workers = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "bulk-load-" + i);
+      thread.start();
+      workers.add(thread);
+    }
+    long count;
+    try {
+      try {
+        count = produce(entries);
+      } finally {
+        // even when reading the entries fails, so that no worker waits forever
+        end(workers);
+      }
+    } catch (InterruptedException e) {
+      for (Thread worker : workers) {
+        worker.interrupt();
+      }
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while bulk loading", e);
+    }
+    if (failure.get() != null) {
+      throw new IllegalStateException("Fail to bulk load entries", failure.get());
+    }
+    return count;
+  }
+
+  /**
+   * A failure of the entries stops the workers, then is thrown to the caller
+   */
+  private long produce(Iterator<Map.Entry<K, V>> entries) throws InterruptedException {
+    long count = 0;
+    try {
+      List<Map.Entry<?, ?>> batch = new ArrayList<>(BATCH_SIZE);
+      while (entries.hasNext() && failure.get() == null) {
+        batch.add(entries.next());
+        count++;
+        if (batch.size() == BATCH_SIZE) {
+          queue.put(batch);
+          batch = new ArrayList<>(BATCH_SIZE);
+        }
+      }
+      if (!batch.isEmpty()) {
+        queue.put(batch);
+      }
+    } catch (RuntimeException | Error e) {
+      failure.compareAndSet(null, e);
+      throw e;
+    }
+    return count;
+  }
+
+  private void end(List<Thread> workers) throws InterruptedException {
+    for (int i = 0; i < workers.size(); i++) {
+      queue.put(END);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void work() {
+    Worker<K, V> worker = null;
+    try {
+      worker = newWorker();
+      for (List<Map.Entry<?, ?>> batch = queue.take(); batch != END; batch = queue.take()) {
+        if (failure.get() == null) {
+          for (Map.Entry<?, ?> entry : batch) {
+            worker.load((K) entry.getKey(), (V) entry.getValue());
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable e) {
+      failure.compareAndSet(null, e);
+      drain();
+    } finally {
+      finish(worker);
+    }
+  }
+
+  /**
+   * Keeps the queue moving after a failure, so that the calling thread is not blocked
+   */
+  private void drain() {
+    try {
+      while (queue.take() != END) {
+        // dropped
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void finish(Worker<K, V> worker) {
+    if (worker != null) {
+      try {
+        worker.finish();
+      } catch (Throwable e) {
+        failure.compareAndSet(null, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package bench;
+
+import javax.annotation.CheckForNull;
+
+import java.io.Serializable;
+
+/**
+ * Access by binary key. Keys are compared by content, and must not be modified once given to the cache.
+ */
+public interface BytesKeyCache<V extends Serializable> {
+
+  BytesKeyCache<V> put(byte[] key, V value);
+
+  @CheckForNull
+  V get(byte[] key);
+
+  boolean containsKey(byte[] key);
+
+}
@@ -3,6 +3,7 @@ package bench;
 import javax.annotation.CheckForNull;
 
 import java.io.Serializable;
+import java.util.Map;
 
 public interface Cache<K, V extends Serializable> {
 
@@ -10,8 +11,25 @@ public interface Cache<K, V extends Serializable> {
 
   Cache<K, V> put(K key, V value);
 
+  /**
+   * Stores all the given entries, faster than one {@link #put(Object, Object)} per entry.
+   */
+  Cache<K, V> putAll(Map<K, V> entries);
+
   Iterable<V> values();
 
+  /**
+   * Entries with a key greater than or equal to {@code fromKey} and lower than {@code toKey}, in key order. They
+   * are read from the backend while iterating.
+   */
+  Iterable<Map.Entry<K, V>> range(K fromKey, K toKey);
+
+  /**
+   * Entries with a String key starting with the given prefix, in key order. They are read from the backend while
+   * iterating.
+   */
+  Iterable<Map.Entry<K, V>> prefix(String prefix);
+
   @CheckForNull
   V get(K key);
 
@@ -0,0 +1,239 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH version of the phases timed by {@link Main}. Each phase is a separate benchmark, run in forked JVMs
+ * after warmup, and reported both as throughput and as sampled latency (with percentiles).
+ * <p>
+ * Run it with {@link #main(String[])} once the project has been compiled, or through
+ * {@code org.openjdk.jmh.Main} to pass the usual JMH command line options.
+ * </p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CacheBenchmark {
+
+  private static final int RANDOM_KEY_COUNT = 100_000;
+  private static final int BATCH_SIZE = 1_000;
+  private static final String TIERED_SUFFIX = "-tiered";
+  private static final int TIER_SIZE = 10_000;
+  private static final File MMAP_DIR = new File("target/mmaplog");
+
+  static Cache<String, Measure> newCache(String backend) {
+    if (backend.endsWith(TIERED_SUFFIX)) {
+      return new TieredCache<>(newCache(backend.substring(0, backend.length() - TIERED_SUFFIX.length())), TIER_SIZE);
+    }
+    switch (backend) {
+      case "persistit":
+        return new PersisitItCache<>();
+      case "persistit-concurrent":
+        return new PersisitItCache<>(true);
+      case "lucene":
+        return new LuceneCache<>(Measure.class);
+      case "mapdb":
+        return new MapDBCache<>();
+      case "mmap":
+        return new MmapLogCache<>(Measure.class, MMAP_DIR);
+      default:
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
+  }
+
+  static String generateData(int dataSize) {
+    StringBuilder data = new StringBuilder();
+    for (int i = 0; i < dataSize; i++) {
+      data.append("foo \n");
+    }
+    return data.toString();
+  }
+
+  /**
+   * Empty cache, recreated for each iteration so that inserts always start from the same state.
+   */
+  @State(Scope.Benchmark)
+  public static class EmptyCache {
+
+    @Param({"persistit", "lucene", "mapdb", "mmap"})
+    public String backend;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+    String data;
+    long next;
+
+    @Setup(Level.Trial)
+    public void generate() {
+      data = generateData(dataSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void open() {
+      cache = newCache(backend);
+      next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+      cache.close();
+    }
+  }
+
+  /**
+   * Cache loaded once per trial with {@code count} entries, then shared by the read and update benchmarks.
+   */
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"persistit", "lucene", "mapdb", "mmap", "persistit-tiered", "lucene-tiered", "mapdb-tiered"})
+    public String backend;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+    String data;
+    long[] randomIds;
+    long[] skewedIds;
+    int nextRandom;
+    long nextSequential;
+
+    @Setup(Level.Trial)
+    public void load() {
+      data = generateData(dataSize);
+      cache = newCache(backend);
+      for (long i = 0; i < count; i++) {
+        cache.put("key" + i, new Measure("key" + i, data, i, new Date()));
+      }
+      Random random = new Random(42);
+      randomIds = new long[RANDOM_KEY_COUNT];
+      skewedIds = new long[RANDOM_KEY_COUNT];
+      for (int i = 0; i < RANDOM_KEY_COUNT; i++) {
+        randomIds[i] = (long) (random.nextDouble() * count);
+        // most reads on a small set of keys
+        skewedIds[i] = (long) (Math.pow(random.nextDouble(), 8) * count);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      if (cache instanceof TieredCache) {
+        System.out.println("Heap tier: " + cache);
+      }
+      cache.close();
+    }
+
+    long nextRandomId() {
+      long id = randomIds[nextRandom];
+      nextRandom = (nextRandom + 1) % RANDOM_KEY_COUNT;
+      return id;
+    }
+
+    long nextSkewedId() {
+      long id = skewedIds[nextRandom];
+      nextRandom = (nextRandom + 1) % RANDOM_KEY_COUNT;
+      return id;
+    }
+
+    long nextSequentialId() {
+      long id = nextSequential;
+      nextSequential = (nextSequential + 1) % count;
+      return id;
+    }
+  }
+
+  @Benchmark
+  public Cache<String, Measure> insert(EmptyCache state) {
+    long i = state.next++;
+    return state.cache.put("key" + i, new Measure("key" + i, state.data, i, new Date()));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public Cache<String, Measure> insertBatch(EmptyCache state) {
+    Map<String, Measure> batch = new HashMap<>();
+    for (int j = 0; j < BATCH_SIZE; j++) {
+      long i = state.next++;
+      batch.put("key" + i, new Measure("key" + i, state.data, i, new Date()));
+    }
+    return state.cache.putAll(batch);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public long iterateAll(LoadedCache state, Blackhole blackhole) {
+    long count = 0;
+    for (Measure m : state.cache.values()) {
+      blackhole.consume(m);
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public Measure accessAllByKey(LoadedCache state) {
+    return state.cache.get("key" + state.nextSequentialId());
+  }
+
+  @Benchmark
+  public Measure randomSelect(LoadedCache state) {
+    return state.cache.get("key" + state.nextRandomId());
+  }
+
+  @Benchmark
+  public Measure skewedSelect(LoadedCache state) {
+    return state.cache.get("key" + state.nextSkewedId());
+  }
+
+  @Benchmark
+  public Measure randomUpdate(LoadedCache state) {
+    long id = state.nextRandomId();
+    Measure m = state.cache.get("key" + id);
+    m.setValue(2L * id);
+    state.cache.put("key" + id, m);
+    return state.cache.get("key" + id);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(CacheBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,10 @@
+package bench;
+
+/**
+ * Cache in front of another cache, which stores the entries
+ */
+interface CacheDecorator {
+
+  Cache<?, ?> backend();
+
+}
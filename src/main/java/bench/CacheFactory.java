@@ -0,0 +1,138 @@
+package bench;
+
+import com.persistit.Persistit;
+import com.persistit.Volume;
+import com.persistit.exception.PersistitException;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates named caches that share their storage engine, instead of starting one engine per cache.
+ * <p>
+ * Persistit caches are trees of a single Persistit instance, so they share its buffer pool, journal and volume.
+ * Lucene caches are fields of a single index, so they share its writer, its segments and their Bloom filters. Each
+ * engine is started with the first cache that uses it. With a persistent Persistit config, the trees are kept when
+ * the factory is closed and reopened by the next factory.
+ * </p>
+ * <p>
+ * Two caches created with the same name work on the same data. Closing a cache keeps its data in the engine;
+ * closing the factory closes the caches it created, then the engines. With MapDB, several named maps of the same
+ * database are created by {@link MapDBCache#createStringCache(String)} and the like.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public class CacheFactory {
+
+  private static final File DEFAULT_LUCENE_DIR = new File("target/lucene");
+  private static final int DEFAULT_MAX_PENDING_WRITES = 1000;
+  private static final long DEFAULT_REFRESH_INTERVAL_MS = 1000;
+
+  private final PersistitCacheConfig persistitConfig;
+  private final File luceneDir;
+  private final double segmentFilterFpp;
+  private final List<Cache<?, ?>> caches = new ArrayList<>();
+  private Persistit persistit;
+  private Volume volume;
+  private LuceneIndex luceneIndex;
+  private boolean closed;
+
+  public CacheFactory() {
+    this(PersistitCacheConfig.builder().build(), DEFAULT_LUCENE_DIR, 0);
+  }
+
+  /**
+   * @param persistitConfig settings of the Persistit instance, its directory is deleted when it starts
+   * @param luceneDir directory of the Lucene index, deleted when the index is opened
+   * @param segmentFilterFpp false positive rate of the Bloom filters of the Lucene segments, 0 to disable them
+   */
+  public CacheFactory(PersistitCacheConfig persistitConfig, File luceneDir, double segmentFilterFpp) {
+    this.persistitConfig = persistitConfig;
+    this.luceneDir = luceneDir;
+    this.segmentFilterFpp = segmentFilterFpp;
+  }
+
+  /**
+   * Cache stored in the Persistit tree of the given name
+   */
+  public synchronized <K, V extends Serializable> PersisitItCache<K, V> persistitCache(String name) {
+    checkName(name);
+    if (persistit == null) {
+      try {
+        PersisitItCache.prepareDirectory(persistitConfig);
+        persistit = PersisitItCache.startPersistit(persistitConfig);
+        volume = PersisitItCache.openVolume(persistit, persistitConfig.concurrent() || persistitConfig.persistent());
+      } catch (PersistitException e) {
+        throw new IllegalStateException("Fail to start Persistit in " + persistitConfig.path(), e);
+      }
+    }
+    PersisitItCache<K, V> cache = new PersisitItCache<>(persistit, volume, name, persistitConfig);
+    caches.add(cache);
+    return cache;
+  }
+
+  public synchronized <V extends Serializable> LuceneCache<V> luceneCache(String name, Class<V> valueClass) {
+    return luceneCache(name, valueClass, DEFAULT_MAX_PENDING_WRITES, DEFAULT_REFRESH_INTERVAL_MS, Compression.NONE);
+  }
+
+  /**
+   * Cache stored in the fields of the Lucene index prefixed by the given name
+   *
+   * @param maxPendingWrites number of writes of the cache after which the shared searcher is refreshed
+   * @param refreshIntervalMs delay between two background refreshes, 0 to disable them
+   */
+  public synchronized <V extends Serializable> LuceneCache<V> luceneCache(String name, Class<V> valueClass, int maxPendingWrites,
+    long refreshIntervalMs, Compression compression) {
+    checkName(name);
+    if (luceneIndex == null) {
+      luceneIndex = new LuceneIndex(luceneDir, segmentFilterFpp);
+    }
+    LuceneCache<V> cache = new LuceneCache<>(luceneIndex, false, name, valueClass, maxPendingWrites, refreshIntervalMs, compression);
+    caches.add(cache);
+    return cache;
+  }
+
+  private void checkName(String name) {
+    if (closed) {
+      throw new IllegalStateException("Cache factory is closed");
+    }
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Cache name must not be empty");
+    }
+  }
+
+  /**
+   * Number of caches created so far
+   */
+  public synchronized int cacheCount() {
+    return caches.size();
+  }
+
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Cache<?, ?> cache : caches) {
+      cache.close();
+    }
+    caches.clear();
+    if (luceneIndex != null) {
+      luceneIndex.close();
+      luceneIndex = null;
+    }
+    if (persistit != null) {
+      try {
+        PersisitItCache.stopPersistit(persistit, persistitConfig);
+      } catch (PersistitException e) {
+        throw new IllegalStateException("Fail to close Persistit", e);
+      }
+      persistit = null;
+      volume = null;
+    }
+  }
+}
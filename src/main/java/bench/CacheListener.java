@@ -0,0 +1,35 @@
+package bench;
+
+/**
+ * Notified by a cache backend of the work it does under the hood, see {@link Instrumented}.
+ * Implementations must be thread-safe and cheap, they are called on the hot path.
+ */
+public interface CacheListener {
+
+  CacheListener NONE = new CacheListener() {
+    @Override
+    public void serialized(int bytes) {
+      // nothing to do
+    }
+
+    @Override
+    public void deserialized(int bytes) {
+      // nothing to do
+    }
+
+    @Override
+    public void event(String name) {
+      // nothing to do
+    }
+  };
+
+  void serialized(int bytes);
+
+  void deserialized(int bytes);
+
+  /**
+   * Backend-specific event, like a Lucene reader reopen or a Persistit exchange fetch
+   */
+  void event(String name);
+
+}
@@ -0,0 +1,28 @@
+package bench;
+
+final class Caches {
+
+  private Caches() {
+    // only static methods
+  }
+
+  /**
+   * The cache which stores the entries, behind the decorators
+   */
+  static Cache<?, ?> storage(Cache<?, ?> cache) {
+    Cache<?, ?> storage = cache;
+    while (storage instanceof CacheDecorator) {
+      storage = ((CacheDecorator) storage).backend();
+    }
+    return storage;
+  }
+
+  /**
+   * A {@link PersisitItCache} which is not concurrent is on a temporary volume, which does not support concurrent
+   * writers
+   */
+  static boolean isSingleWriter(Cache<?, ?> cache) {
+    Cache<?, ?> storage = storage(cache);
+    return storage instanceof PersisitItCache && !((PersisitItCache<?, ?>) storage).isConcurrent();
+  }
+}
@@ -0,0 +1,223 @@
+package bench;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the encoded values, with statistics on the compression ratio and on the time spent.
+ * <p>
+ * Unless the codec is {@link Codec#NONE}, each encoded value starts with a byte telling how it was stored: values
+ * smaller than the minimum size, or that would not shrink, are stored as is after this byte. With
+ * {@link Codec#NONE} values are stored as is, without any header.
+ * </p>
+ * <p>
+ * The buffers returned by {@link #encode(byte[], int, int)} and {@link #decode(byte[], int, int)} are reused by the
+ * calling thread.
+ * </p>
+ */
+public final class Compression implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Codec {
+    NONE, DEFLATE, SNAPPY
+  }
+
+  public static final Compression NONE = new Compression(Codec.NONE, Integer.MAX_VALUE);
+
+  private static final int DEFAULT_MIN_SIZE = 256;
+  private static final byte STORED = 0;
+  private static final byte DEFLATED = 1;
+  private static final byte SNAPPY = 2;
+  private static final int LENGTH_SIZE = 4;
+
+  private final Codec codec;
+  private final int minSize;
+  private final transient AtomicLong encodedValues = new AtomicLong();
+  private final transient AtomicLong rawBytes = new AtomicLong();
+  private final transient AtomicLong storedBytes = new AtomicLong();
+  private final transient AtomicLong encodeNanos = new AtomicLong();
+  private final transient AtomicLong decodedValues = new AtomicLong();
+  private final transient AtomicLong decodeNanos = new AtomicLong();
+  private final transient ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+    @Override
+    protected Buffers initialValue() {
+      return new Buffers();
+    }
+  };
+
+  public Compression(Codec codec) {
+    this(codec, DEFAULT_MIN_SIZE);
+  }
+
+  /**
+   * @param minSize values smaller than that are not compressed
+   */
+  public Compression(Codec codec, int minSize) {
+    this.codec = codec;
+    this.minSize = minSize;
+  }
+
+  public Codec codec() {
+    return codec;
+  }
+
+  /**
+   * @return the stored form of the given bytes, which is a view of them when they are not compressed
+   */
+  public ByteBuffer encode(byte[] bytes, int offset, int length) {
+    if (codec == Codec.NONE) {
+      return ByteBuffer.wrap(bytes, offset, length);
+    }
+    long start = System.nanoTime();
+    Buffers work = buffers.get();
+    int size = length < minSize ? -1 : compress(bytes, offset, length, work);
+    if (size < 0 || size >= length + 1) {
+      byte[] out = work.output(length + 1);
+      out[0] = STORED;
+      System.arraycopy(bytes, offset, out, 1, length);
+      size = length + 1;
+    }
+    encodedValues.incrementAndGet();
+    rawBytes.addAndGet(length);
+    storedBytes.addAndGet(size);
+    encodeNanos.addAndGet(System.nanoTime() - start);
+    return ByteBuffer.wrap(work.output, 0, size);
+  }
+
+  /**
+   * @return the size of the compressed form in the output buffer, -1 if it does not fit in the size of the input
+   */
+  private int compress(byte[] bytes, int offset, int length, Buffers work) {
+    switch (codec) {
+      case DEFLATE:
+        byte[] out = work.output(1 + LENGTH_SIZE + length);
+        out[0] = DEFLATED;
+        ByteBuffer.wrap(out).putInt(1, length);
+        Deflater deflater = work.deflater();
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+        int size = deflater.deflate(out, 1 + LENGTH_SIZE, length - LENGTH_SIZE);
+        boolean finished = deflater.finished();
+        deflater.reset();
+        return finished ? 1 + LENGTH_SIZE + size : -1;
+      case SNAPPY:
+        out = work.output(1 + Snappy.maxCompressedLength(length));
+        out[0] = SNAPPY;
+        return 1 + Snappy.compress(bytes, offset, length, out, 1);
+      default:
+        throw new IllegalStateException("Unknown codec: " + codec);
+    }
+  }
+
+  /**
+   * @return the original bytes, which are a view of the given ones when they were not compressed
+   */
+  public ByteBuffer decode(byte[] bytes, int offset, int length) {
+    if (codec == Codec.NONE) {
+      return ByteBuffer.wrap(bytes, offset, length);
+    }
+    long start = System.nanoTime();
+    ByteBuffer decoded;
+    try {
+      switch (bytes[offset]) {
+        case STORED:
+          decoded = ByteBuffer.wrap(bytes, offset + 1, length - 1);
+          break;
+        case DEFLATED:
+          decoded = inflate(bytes, offset, length);
+          break;
+        case SNAPPY:
+          byte[] out = buffers.get().output(Snappy.getUncompressedLength(bytes, offset + 1));
+          decoded = ByteBuffer.wrap(out, 0, Snappy.uncompress(bytes, offset + 1, length - 1, out, 0));
+          break;
+        default:
+          throw new IllegalStateException("Unknown compression: " + bytes[offset]);
+      }
+    } catch (CorruptionException | DataFormatException e) {
+      throw new IllegalStateException("Fail to decompress value", e);
+    }
+    decodedValues.incrementAndGet();
+    decodeNanos.addAndGet(System.nanoTime() - start);
+    return decoded;
+  }
+
+  private ByteBuffer inflate(byte[] bytes, int offset, int length) throws DataFormatException {
+    Buffers work = buffers.get();
+    int size = ByteBuffer.wrap(bytes).getInt(offset + 1);
+    byte[] out = work.output(size);
+    Inflater inflater = work.inflater();
+    inflater.setInput(bytes, offset + 1 + LENGTH_SIZE, length - 1 - LENGTH_SIZE);
+    try {
+      inflater.inflate(out, 0, size);
+    } finally {
+      inflater.reset();
+    }
+    return ByteBuffer.wrap(out, 0, size);
+  }
+
+  /**
+   * Stored bytes divided by original bytes, for the values encoded so far
+   */
+  public double ratio() {
+    long raw = rawBytes.get();
+    return raw == 0 ? 1.0 : (double) storedBytes.get() / raw;
+  }
+
+  public long averageEncodeNanos() {
+    long count = encodedValues.get();
+    return count == 0 ? 0 : encodeNanos.get() / count;
+  }
+
+  public long averageDecodeNanos() {
+    long count = decodedValues.get();
+    return count == 0 ? 0 : decodeNanos.get() / count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("codec=%s ratio=%.3f encode=%.1fus decode=%.1fus", codec, ratio(), averageEncodeNanos() / 1000.0,
+      averageDecodeNanos() / 1000.0);
+  }
+
+  /**
+   * Only the settings are serialized, the statistics and the buffers of the deserialized instance start empty
+   */
+  private Object readResolve() {
+    return codec == Codec.NONE ? NONE : new Compression(codec, minSize);
+  }
+
+  private static final class Buffers {
+    private byte[] output = new byte[4096];
+    private Deflater deflater;
+    private Inflater inflater;
+
+    private byte[] output(int length) {
+      if (output.length < length) {
+        output = new byte[Math.max(length, output.length * 2)];
+      }
+      return output;
+    }
+
+    private Deflater deflater() {
+      if (deflater == null) {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+      }
+      return deflater;
+    }
+
+    private Inflater inflater() {
+      if (inflater == null) {
+        inflater = new Inflater();
+      }
+      return inflater;
+    }
+  }
+}
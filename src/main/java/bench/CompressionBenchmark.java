@@ -0,0 +1,113 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Insert and read throughput of each backend with each value compression codec. The compression ratio, the
+ * average encode/decode times and the disk footprint are printed at the end of each trial.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompressionBenchmark {
+
+  static Cache<String, Measure> newCache(String backend, Compression compression) {
+    switch (backend) {
+      case "persistit":
+        return new PersisitItCache<String, Measure>().registerValueCoder(Measure.class, new KryoValueCoder(compression));
+      case "lucene":
+        return new LuceneCache<>(Measure.class, compression);
+      case "mapdb":
+        return new MapDBCache<>(compression);
+      default:
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
+  }
+
+  static long diskSize(Cache<String, Measure> cache) {
+    if (cache instanceof PersisitItCache) {
+      return ((PersisitItCache) cache).volumeSize();
+    }
+    if (cache instanceof LuceneCache) {
+      return ((LuceneCache) cache).diskSize();
+    }
+    return ((MapDBCache) cache).diskSize();
+  }
+
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"persistit", "lucene", "mapdb"})
+    public String backend;
+
+    @Param({"NONE", "DEFLATE", "SNAPPY"})
+    public Compression.Codec codec;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Compression compression;
+    Cache<String, Measure> cache;
+    String data;
+    long next;
+
+    @Setup(Level.Trial)
+    public void load() {
+      data = CacheBenchmark.generateData(dataSize);
+      compression = codec == Compression.Codec.NONE ? Compression.NONE : new Compression(codec);
+      cache = newCache(backend, compression);
+      for (next = 0; next < count; next++) {
+        cache.put("key" + next, new Measure("key" + next, data, next, new Date()));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      System.out.println(backend + ": " + compression + ", " + next + " entries, disk size: " + diskSize(cache) + " bytes");
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public Cache<String, Measure> insert(LoadedCache state) {
+    long i = state.next++;
+    return state.cache.put("key" + i, new Measure("key" + i, state.data, i, new Date()));
+  }
+
+  @Benchmark
+  public Measure randomSelect(LoadedCache state) {
+    return state.cache.get("key" + ThreadLocalRandom.current().nextLong(state.count));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(CompressionBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
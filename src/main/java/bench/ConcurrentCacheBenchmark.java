@@ -0,0 +1,104 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded phase: random reads and updates on one shared cache. {@link #main(String[])} runs it
+ * from 1 thread up to the number of available processors, to show how throughput scales.
+ * Only backends that are safe for concurrent use are listed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConcurrentCacheBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class SharedCache {
+
+    @Param({"persistit-concurrent", "lucene", "mapdb", "mmap"})
+    public String backend;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+
+    @Setup(Level.Trial)
+    public void load() {
+      String data = CacheBenchmark.generateData(dataSize);
+      cache = CacheBenchmark.newCache(backend);
+      for (long i = 0; i < count; i++) {
+        cache.put("key" + i, new Measure("key" + i, data, i, new Date()));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      cache.close();
+    }
+
+    long randomId() {
+      return ThreadLocalRandom.current().nextLong(count);
+    }
+  }
+
+  @Benchmark
+  public Measure get(SharedCache state) {
+    return state.cache.get("key" + state.randomId());
+  }
+
+  @Benchmark
+  public boolean containsKey(SharedCache state) {
+    return state.cache.containsKey("key" + state.randomId());
+  }
+
+  /**
+   * 90% reads, 10% read-modify-write.
+   */
+  @Benchmark
+  public Measure mixed(SharedCache state) {
+    long id = state.randomId();
+    Measure m = state.cache.get("key" + id);
+    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+      m.setValue(2L * id);
+      state.cache.put("key" + id, m);
+    }
+    return m;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      Options options = new OptionsBuilder()
+        .include(ConcurrentCacheBenchmark.class.getSimpleName())
+        .threads(threads)
+        .build();
+      new Runner(options).run();
+    }
+  }
+}
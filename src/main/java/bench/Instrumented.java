@@ -0,0 +1,10 @@
+package bench;
+
+/**
+ * Cache that reports serialization and backend events to a {@link CacheListener}.
+ */
+public interface Instrumented {
+
+  void setListener(CacheListener listener);
+
+}
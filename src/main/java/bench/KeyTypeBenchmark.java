@@ -0,0 +1,95 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random reads by {@code "key" + id} String keys compared with the same reads by {@code long} id.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class KeyTypeBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"persistit", "lucene", "mapdb"})
+    public String backend;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+    LongKeyCache<Measure> longCache;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void load() {
+      String data = CacheBenchmark.generateData(dataSize);
+      cache = CacheBenchmark.newCache(backend);
+      longCache = (LongKeyCache<Measure>) cache;
+      for (long i = 0; i < count; i++) {
+        Measure measure = new Measure("key" + i, data, i, new Date());
+        cache.put("key" + i, measure);
+        longCache.put(i, measure);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public Measure stringKey(LoadedCache state) {
+    return state.cache.get("key" + ThreadLocalRandom.current().nextLong(state.count));
+  }
+
+  @Benchmark
+  public Measure longKey(LoadedCache state) {
+    return state.longCache.get(ThreadLocalRandom.current().nextLong(state.count));
+  }
+
+  @Benchmark
+  public boolean stringKeyContains(LoadedCache state) {
+    return state.cache.containsKey("key" + ThreadLocalRandom.current().nextLong(state.count));
+  }
+
+  @Benchmark
+  public boolean longKeyContains(LoadedCache state) {
+    return state.longCache.containsKey(ThreadLocalRandom.current().nextLong(state.count));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(KeyTypeBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,33 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+final class Keys {
+
+  private Keys() {
+    // only static methods
+  }
+
+  /**
+   * Copy of the given keys, in their natural order if they are all of the same comparable class, in iteration
+   * order otherwise
+   */
+  @SuppressWarnings("unchecked")
+  static <K> List<K> sorted(Collection<K> keys) {
+    List<K> sorted = new ArrayList<>(keys);
+    Class<?> keyClass = sorted.isEmpty() ? null : sorted.get(0).getClass();
+    if (keyClass == null || !Comparable.class.isAssignableFrom(keyClass)) {
+      return sorted;
+    }
+    for (K key : sorted) {
+      if (key.getClass() != keyClass) {
+        return sorted;
+      }
+    }
+    Collections.sort((List<Comparable<Object>>) sorted);
+    return sorted;
+  }
+}
@@ -2,31 +2,97 @@ package bench;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
 import org.mapdb.Serializer;
 import org.objenesis.strategy.SerializingInstantiatorStrategy;
 
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
-
+import java.nio.ByteBuffer;
+
+/**
+ * MapDB serializer based on Kryo. Each value is written as its length (4 bytes) followed by the Kryo bytes,
+ * so that it can be read in bulk even when MapDB does not give the available size (values stored inside BTree
+ * nodes).
+ * <p>
+ * Kryo instances and buffers are reused by each thread, and MapDB {@link DataOutput2}/{@link DataInput2} byte
+ * arrays are written and read directly, so that no object is allocated per record apart from the value itself.
+ * </p>
+ * <p>
+ * When values are compressed, the length is the one of the compressed bytes, and Kryo writes into its own buffer
+ * before the compression.
+ * </p>
+ */
 public class KryoSerializer implements Serializer<Object>, Serializable {
 
-  private transient Kryo kryo;
+  private static final int LENGTH_SIZE = 4;
+
+  private final Compression compression;
+  private transient ThreadLocal<Codec> codecs;
+  private transient volatile CacheListener listener = CacheListener.NONE;
 
   public KryoSerializer() {
-    kryo = new Kryo();
-    kryo.setInstantiatorStrategy(new SerializingInstantiatorStrategy());
+    this(Compression.NONE);
+  }
+
+  public KryoSerializer(Compression compression) {
+    this.compression = compression;
+    codecs = new ThreadLocal<Codec>() {
+      @Override
+      protected Codec initialValue() {
+        return new Codec();
+      }
+    };
+  }
+
+  void setListener(CacheListener listener) {
+    this.listener = listener;
   }
 
   @Override
   public void serialize(DataOutput out, Object value) throws IOException {
-    Output output = new Output(new DataOutputOutputStream(out));
-    kryo.writeClassAndObject(output, value);
-    output.close();
+    Codec codec = codecs.get();
+    if (out instanceof DataOutput2 && compression.codec() == Compression.Codec.NONE) {
+      listener.serialized(serializeInPlace((DataOutput2) out, value, codec));
+    } else {
+      codec.output.clear();
+      codec.kryo.writeClassAndObject(codec.output, value);
+      ByteBuffer stored = compression.encode(codec.output.getBuffer(), 0, codec.output.position());
+      out.writeInt(stored.remaining());
+      out.write(stored.array(), stored.position(), stored.remaining());
+      listener.serialized(stored.remaining());
+    }
+  }
+
+  /**
+   * Kryo writes straight into the MapDB buffer, after room left for the length. If Kryo has to grow the buffer,
+   * the grown one replaces the MapDB one.
+   *
+   * @return the number of bytes written by Kryo
+   */
+  private static int serializeInPlace(DataOutput2 out, Object value, Codec codec) {
+    int start = out.pos;
+    out.ensureAvail(LENGTH_SIZE);
+    Output output = codec.output;
+    byte[] ownBuffer = output.getBuffer();
+    output.setBuffer(out.buf, -1);
+    output.setPosition(start + LENGTH_SIZE);
+    try {
+      codec.kryo.writeClassAndObject(output, value);
+      out.buf = output.getBuffer();
+      out.pos = output.position();
+    } finally {
+      output.setBuffer(ownBuffer, -1);
+    }
+    int length = out.pos - start - LENGTH_SIZE;
+    out.buf[start] = (byte) (length >>> 24);
+    out.buf[start + 1] = (byte) (length >>> 16);
+    out.buf[start + 2] = (byte) (length >>> 8);
+    out.buf[start + 3] = (byte) length;
+    return length;
   }
 
   @Override
@@ -34,10 +100,21 @@ public class KryoSerializer implements Serializer<Object>, Serializable {
     if (available == 0) {
       return null;
     }
-    Input input = new Input(new DataInputInputStream(in));
-    Object someObject = kryo.readClassAndObject(input);
-    input.close();
-    return someObject;
+    Codec codec = codecs.get();
+    int length = in.readInt();
+    listener.deserialized(length);
+    ByteBuffer stored;
+    if (in instanceof DataInput2 && ((DataInput2) in).buf.hasArray()) {
+      DataInput2 in2 = (DataInput2) in;
+      stored = compression.decode(in2.buf.array(), in2.buf.arrayOffset() + in2.pos, length);
+      in2.pos += length;
+    } else {
+      byte[] bytes = codec.readBuffer(length);
+      in.readFully(bytes, 0, length);
+      stored = compression.decode(bytes, 0, length);
+    }
+    codec.input.setBuffer(stored.array(), stored.position(), stored.remaining());
+    return codec.kryo.readClassAndObject(codec.input);
   }
 
   @Override
@@ -45,48 +122,27 @@ public class KryoSerializer implements Serializer<Object>, Serializable {
     return -1;
   }
 
-  private static class DataInputInputStream extends InputStream {
-
-    private DataInput dataInput;
-
-    public DataInputInputStream(DataInput in) {
-      this.dataInput = in;
-    }
-
-    @Override
-    public int read() throws IOException {
-      try {
-        return dataInput.readByte();
-      } catch (EOFException e) {
-        return -1;
-      }
-    }
-
+  private Object readResolve() {
+    return new KryoSerializer(compression);
   }
 
-  private static class DataOutputOutputStream extends OutputStream {
-
-    private DataOutput out;
+  private static class Codec {
+    private final Kryo kryo;
+    private final Output output = new Output(4096, -1);
+    private final Input input = new Input();
+    private byte[] readBuffer = new byte[4096];
 
-    public DataOutputOutputStream(DataOutput out) {
-      this.out = out;
+    private Codec() {
+      kryo = new Kryo();
+      kryo.setInstantiatorStrategy(new SerializingInstantiatorStrategy());
     }
 
-    @Override
-    public void write(int b) throws IOException {
-      out.write((byte) b);
-    }
-
-    @Override
-    public void write(byte[] b) throws IOException {
-      out.write(b);
-    }
-
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-      out.write(b, off, len);
+    private byte[] readBuffer(int length) {
+      if (readBuffer.length < length) {
+        readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+      }
+      return readBuffer;
     }
-
   }
 
 }
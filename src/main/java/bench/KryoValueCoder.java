@@ -0,0 +1,99 @@
+package bench;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.persistit.Value;
+import com.persistit.encoding.CoderContext;
+import com.persistit.encoding.ValueCoder;
+import com.persistit.exception.ConversionException;
+import org.objenesis.strategy.SerializingInstantiatorStrategy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Persistit {@link ValueCoder} that stores objects as a single Kryo-encoded byte array, instead of the
+ * field-by-field encoding with class descriptors used by default for {@link java.io.Serializable} classes.
+ * <p>
+ * Kryo instances are not thread-safe, so each thread gets its own instance and output buffer.
+ * </p>
+ * <p>
+ * The Kryo bytes go through the given {@link Compression}. Their stored length is written after them, at the
+ * very end of the Persistit value, so that {@link #payload(Value)} finds them without decoding anything.
+ * </p>
+ * <p>
+ * Kryo reference tracking is off, so that the payload is exactly what the serializer of the class wrote. Values
+ * must be trees: an object reachable twice from the same value is stored twice and read back as two copies, and a
+ * cycle overflows the stack when the value is written.
+ * </p>
+ */
+public class KryoValueCoder implements ValueCoder {
+
+  private static final int LENGTH_SIZE = 4;
+
+  private final Compression compression;
+
+  private final ThreadLocal<Codec> codecs = new ThreadLocal<Codec>() {
+    @Override
+    protected Codec initialValue() {
+      return new Codec();
+    }
+  };
+
+  public KryoValueCoder() {
+    this(Compression.NONE);
+  }
+
+  public KryoValueCoder(Compression compression) {
+    this.compression = compression;
+  }
+
+  public Compression compression() {
+    return compression;
+  }
+
+  @Override
+  public void put(Value value, Object object, CoderContext context) throws ConversionException {
+    Codec codec = codecs.get();
+    codec.output.clear();
+    codec.kryo.writeObject(codec.output, object);
+    ByteBuffer stored = compression.encode(codec.output.getBuffer(), 0, codec.output.position());
+    if (stored.array() != codec.output.getBuffer()) {
+      codec.output.clear();
+      codec.output.writeBytes(stored.array(), stored.position(), stored.remaining());
+    }
+    codec.output.writeInt(stored.remaining());
+    value.putByteArray(codec.output.getBuffer(), 0, codec.output.position());
+  }
+
+  @Override
+  public Object get(Value value, Class<?> clazz, CoderContext context) throws ConversionException {
+    Codec codec = codecs.get();
+    byte[] bytes = value.getByteArray();
+    ByteBuffer decoded = compression.decode(bytes, 0, bytes.length - LENGTH_SIZE);
+    return codec.kryo.readObject(new Input(decoded.array(), decoded.position(), decoded.remaining()), clazz);
+  }
+
+  /**
+   * @return read-only view of the Kryo bytes of a value encoded by this coder, in the buffer of the value unless
+   * they are compressed
+   */
+  ByteBuffer payload(Value value) {
+    byte[] encoded = value.getEncodedBytes();
+    int end = value.getEncodedSize() - LENGTH_SIZE;
+    int length = ByteBuffer.wrap(encoded).getInt(end);
+    return compression.decode(encoded, end - length, length).slice().asReadOnlyBuffer();
+  }
+
+  private static class Codec {
+    private final Kryo kryo;
+    private final Output output;
+
+    private Codec() {
+      kryo = new Kryo();
+      kryo.setInstantiatorStrategy(new SerializingInstantiatorStrategy());
+      kryo.setReferences(false);
+      output = new Output(4096, -1);
+    }
+  }
+}
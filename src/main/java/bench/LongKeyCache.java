@@ -0,0 +1,19 @@
+package bench;
+
+import javax.annotation.CheckForNull;
+
+import java.io.Serializable;
+
+/**
+ * Access by numeric id, without building a String key for each operation.
+ */
+public interface LongKeyCache<V extends Serializable> {
+
+  LongKeyCache<V> put(long key, V value);
+
+  @CheckForNull
+  V get(long key);
+
+  boolean containsKey(long key);
+
+}
@@ -3,183 +3,820 @@ package bench;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
-import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.document.StoredField;
-import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.util.Bits;
-import org.apache.lucene.util.Version;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 import org.objenesis.strategy.SerializingInstantiatorStrategy;
 
+import javax.annotation.Nullable;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * Lookups go through a {@link SearcherManager} which is not reopened on each read. Values written since the last
+ * refresh are kept serialized in memory, so that reads still see them. The searcher is refreshed (and the
+ * pending writes dropped) after a given number of writes, and periodically by a background thread.
+ * </p>
+ * <p>
+ * Keys are indexed as single terms without norms nor positions, and values are stored in binary doc values:
+ * a lookup is a {@link TermsEnum#seekExact(BytesRef)} on each segment followed by a doc values read, no query
+ * is parsed nor scored.
+ * </p>
+ * <p>
+ * String, {@code long} and {@code byte[]} keys are indexed in different fields, so they are separate key spaces
+ * of the same cache. Numeric keys are fixed-width 8 bytes terms, and binary keys are indexed as is: none of them
+ * goes through a String.
+ * </p>
+ * <p>
+ * Optionally, each segment has a Bloom filter of its keys per key field, which lets lookups skip the segments that
+ * do not have the key, see {@link LuceneIndex}.
+ * </p>
+ * <p>
+ * A cache created by a {@link CacheFactory} shares the index of the factory with the other caches, its fields
+ * being prefixed by its name.
+ * </p>
+ * <p>
+ * Values are written by Kryo without reference tracking, as {@link RawValueCache} requires. They must not contain
+ * cycles, and objects shared within a value come back as distinct copies.
+ * </p>
+ * <p>
+ * This cache is thread-safe. Bulk writes add the keys they do not find in the index without a delete-by-term, so
+ * they exclude the single-key writes of the cache from their lookup until their documents are visible.
+ * </p>
+ */
+public class LuceneCache<V extends Serializable> implements Cache<String, V>, LongKeyCache<V>, BytesKeyCache<V>, RawValueCache<String>,
+  BulkLoadCache<String, V>, SortedBulkLoader<String, V>, Instrumented {
 
-public class LuceneCache<V extends Serializable> implements Cache<String, V> {
+  private static final int DEFAULT_MAX_PENDING_WRITES = 1000;
+  private static final long DEFAULT_REFRESH_INTERVAL_MS = 1000;
+  private static final double SORTED_LOAD_RAM_BUFFER_MB = 256;
+  static final String REOPEN_EVENT = "readerReopen";
+  static final String SEGMENT_FILTER_EVENT = "segmentFilterBuild";
+  private static final File INDEX_DIR = new File("target/lucene");
+  private static final int SCAN_BATCH_SIZE = 256;
+  private static final String KEY_FIELD = "key";
+  private static final String LONG_KEY_FIELD = "longKey";
+  private static final String BYTES_KEY_FIELD = "bytesKey";
+  private static final String DATA_FIELD = "data";
+  private static final FieldType KEY_TYPE = new FieldType(StringField.TYPE_NOT_STORED);
+
+  static {
+    // the key is given as a token stream, which Lucene only accepts on tokenized fields
+    KEY_TYPE.setTokenized(true);
+    KEY_TYPE.freeze();
+  }
 
-  private IndexWriter writer;
-  private Kryo kryo;
-  private DirectoryReader reader;
+  private final LuceneIndex index;
+  private final boolean ownsIndex;
+  private final IndexWriter writer;
+  private final SearcherManager searcherManager;
+  private final String keyField;
+  private final String longKeyField;
+  private final String bytesKeyField;
+  private final String dataField;
+  private ThreadLocal<Kryo> kryos;
   private Class<V> valueClass;
-  private KeywordAnalyzer analyzer;
-  private IndexSearcher searcher;
+  private volatile CacheListener listener = CacheListener.NONE;
+  private final ReferenceManager.RefreshListener refreshListener = new ReferenceManager.RefreshListener() {
+    @Override
+    public void beforeRefresh() {
+      // nothing to do
+    }
+
+    @Override
+    public void afterRefresh(boolean didRefresh) {
+      if (didRefresh) {
+        listener.event(REOPEN_EVENT);
+      }
+    }
+  };
+
+  private final ConcurrentMap<Term, byte[]> pendingWrites = new ConcurrentHashMap<>();
+  private final ThreadLocal<BytesRef> longKeys = new ThreadLocal<BytesRef>() {
+    @Override
+    protected BytesRef initialValue() {
+      return new BytesRef(new byte[8]);
+    }
+  };
+  private final ThreadLocal<BytesRef> rawValues = new ThreadLocal<BytesRef>() {
+    @Override
+    protected BytesRef initialValue() {
+      return new BytesRef();
+    }
+  };
+  private final AtomicInteger writesSinceRefresh = new AtomicInteger();
+  /**
+   * Shared by the single-key writes, held exclusively by the bulk writes
+   */
+  private final ReadWriteLock writeLock = new ReentrantReadWriteLock();
+  private final int maxPendingWrites;
+  private final Compression compression;
+  private ScheduledExecutorService refresher;
 
   public LuceneCache(Class<V> valueClass) {
-    try {
-      this.valueClass = valueClass;
-      analyzer = new KeywordAnalyzer();
-      Directory index = FSDirectory.open(new File("target/lucene"));
+    this(valueClass, DEFAULT_MAX_PENDING_WRITES, DEFAULT_REFRESH_INTERVAL_MS);
+  }
+
+  public LuceneCache(Class<V> valueClass, Compression compression) {
+    this(valueClass, DEFAULT_MAX_PENDING_WRITES, DEFAULT_REFRESH_INTERVAL_MS, compression);
+  }
 
-      IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_47, analyzer);
-      config.setOpenMode(OpenMode.CREATE);
+  public LuceneCache(Class<V> valueClass, double segmentFilterFpp) {
+    this(valueClass, DEFAULT_MAX_PENDING_WRITES, DEFAULT_REFRESH_INTERVAL_MS, Compression.NONE, segmentFilterFpp);
+  }
 
-      kryo = new Kryo();
-      kryo.setInstantiatorStrategy(new SerializingInstantiatorStrategy());
+  public LuceneCache(Class<V> valueClass, int maxPendingWrites, long refreshIntervalMs) {
+    this(valueClass, maxPendingWrites, refreshIntervalMs, Compression.NONE);
+  }
 
-      writer = new IndexWriter(index, config);
+  public LuceneCache(Class<V> valueClass, int maxPendingWrites, long refreshIntervalMs, Compression compression) {
+    this(valueClass, maxPendingWrites, refreshIntervalMs, compression, 0);
+  }
 
-      reader = DirectoryReader.open(writer, true);
-      searcher = new IndexSearcher(reader);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+  /**
+   * Persistent cache: the index is kept in the given directory when the cache is closed, and reopened by the next
+   * persistent cache on this directory, unless the header written at the close does not match. Values must then be
+   * of the same class.
+   */
+  public LuceneCache(Class<V> valueClass, File persistentDir) {
+    this(valueClass, persistentDir, true);
+  }
+
+  /**
+   * @param dir directory of the index, deleted first unless it has a persistent index to reopen
+   * @param persistent true to keep the index when the cache is closed, and to reopen it if valid
+   */
+  public LuceneCache(Class<V> valueClass, File dir, boolean persistent) {
+    this(new LuceneIndex(dir, 0, persistent), true, null, valueClass, DEFAULT_MAX_PENDING_WRITES, DEFAULT_REFRESH_INTERVAL_MS,
+      Compression.NONE);
+  }
+
+  /**
+   * @param maxPendingWrites number of writes after which the searcher is refreshed
+   * @param refreshIntervalMs delay between two background refreshes, 0 to disable them
+   * @param segmentFilterFpp false positive rate of the Bloom filters of the segments, 0 to disable them
+   */
+  public LuceneCache(Class<V> valueClass, int maxPendingWrites, long refreshIntervalMs, Compression compression, double segmentFilterFpp) {
+    this(new LuceneIndex(INDEX_DIR, segmentFilterFpp), true, null, valueClass, maxPendingWrites, refreshIntervalMs, compression);
+  }
+
+  /**
+   * @param ownsIndex true if the index is closed with this cache
+   * @param name prefix of the fields of this cache in the index, null for the unprefixed fields
+   */
+  LuceneCache(LuceneIndex index, boolean ownsIndex, @Nullable String name, Class<V> valueClass, int maxPendingWrites, long refreshIntervalMs,
+    Compression compression) {
+    this.index = index;
+    this.ownsIndex = ownsIndex;
+    this.writer = index.writer();
+    this.searcherManager = index.searcherManager();
+    String fieldPrefix = name == null ? "" : (name + ".");
+    this.keyField = fieldPrefix + KEY_FIELD;
+    this.longKeyField = fieldPrefix + LONG_KEY_FIELD;
+    this.bytesKeyField = fieldPrefix + BYTES_KEY_FIELD;
+    this.dataField = fieldPrefix + DATA_FIELD;
+    this.valueClass = valueClass;
+    this.maxPendingWrites = maxPendingWrites;
+    this.compression = compression;
+    kryos = new ThreadLocal<Kryo>() {
+      @Override
+      protected Kryo initialValue() {
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new SerializingInstantiatorStrategy());
+        kryo.setReferences(false);
+        return kryo;
+      }
+    };
+    searcherManager.addListener(refreshListener);
+    if (refreshIntervalMs > 0) {
+      startRefresher(refreshIntervalMs);
     }
   }
 
+  /**
+   * @return true if the index of a previous persistent cache was reopened rather than created
+   */
+  public boolean wasReopened() {
+    return index.wasReopened();
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    this.listener = listener;
+    if (ownsIndex) {
+      index.setListener(listener);
+    }
+  }
+
+  private void startRefresher(long refreshIntervalMs) {
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "lucene-cache-refresher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (!pendingWrites.isEmpty()) {
+          refresh();
+        }
+      }
+    }, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
   @Override
   public void close() {
     try {
-      writer.close();
-      reader.close();
+      if (refresher != null) {
+        refresher.shutdownNow();
+        refresher.awaitTermination(1, TimeUnit.MINUTES);
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    searcherManager.removeListener(refreshListener);
+    if (ownsIndex) {
+      index.close();
+    }
+  }
+
+  /**
+   * Makes all the writes visible to the searcher, then forgets the pending writes that were visible before the
+   * refresh. Writes done during the refresh stay pending.
+   */
+  private void refresh() {
+    Map<Term, byte[]> refreshed = new HashMap<>(pendingWrites);
+    writesSinceRefresh.set(0);
+    try {
+      searcherManager.maybeRefreshBlocking();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    for (Map.Entry<Term, byte[]> entry : refreshed.entrySet()) {
+      pendingWrites.remove(entry.getKey(), entry.getValue());
+    }
   }
 
   @Override
   public boolean containsKey(String key) {
-    reopenReader();
+    return doContainsKey(keyField, new BytesRef(key));
+  }
+
+  @Override
+  public boolean containsKey(long key) {
+    return doContainsKey(longKeyField, longKey(key));
+  }
+
+  @Override
+  public boolean containsKey(byte[] key) {
+    return doContainsKey(bytesKeyField, new BytesRef(key));
+  }
+
+  private boolean doContainsKey(String field, BytesRef key) {
+    if (pending(field, key) != null) {
+      return true;
+    }
     try {
-      TopDocs topDocs = search(key);
-      return topDocs.totalHits > 0;
+      IndexSearcher searcher = searcherManager.acquire();
+      try {
+        return lookup(searcher.getIndexReader(), field, key, null);
+      } finally {
+        searcherManager.release(searcher);
+      }
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
-  private TopDocs search(String key) throws IOException {
-    BooleanQuery q = new BooleanQuery();
-    q.add(new BooleanClause(new TermQuery(new Term("key", key)), Occur.MUST));
-    TopDocs topDocs = searcher.search(q, 1);
-    return topDocs;
+  /**
+   * Encodes the key in the buffer of the current thread: 8 bytes big-endian, with the sign bit flipped so that the
+   * terms are in the same order as the numbers.
+   */
+  private BytesRef longKey(long key) {
+    BytesRef bytes = longKeys.get();
+    long sortable = key ^ Long.MIN_VALUE;
+    for (int i = 7; i >= 0; i--) {
+      bytes.bytes[i] = (byte) sortable;
+      sortable >>>= 8;
+    }
+    return bytes;
+  }
+
+  @Nullable
+  private byte[] pending(String field, BytesRef key) {
+    return pendingWrites.isEmpty() ? null : pendingWrites.get(new Term(field, key));
+  }
+
+  /**
+   * Finds the live document of the given key.
+   *
+   * @param value if not null, filled with the serialized value of the document
+   * @return true if the key was found
+   */
+  private boolean lookup(IndexReader reader, String field, BytesRef key, @Nullable BytesRef value) throws IOException {
+    boolean filtered = index.hasSegmentFilters();
+    long hash = filtered ? BloomFilter.hash(key.bytes, key.offset, key.length) : 0;
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      AtomicReader segmentReader = leaf.reader();
+      if (filtered && !index.segmentMightContain(segmentReader, field, hash)) {
+        continue;
+      }
+      Terms terms = segmentReader.terms(field);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator(null);
+      if (termsEnum.seekExact(key)) {
+        DocsEnum docs = termsEnum.docs(segmentReader.getLiveDocs(), null, DocsEnum.FLAG_NONE);
+        int doc = docs.nextDoc();
+        if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+          if (value != null) {
+            segmentReader.getBinaryDocValues(dataField).get(doc, value);
+          }
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
   @Override
   public LuceneCache<V> put(String key, V value) {
-    doPut(key, value);
+    doPut(new Term(keyField, key), value);
     return this;
   }
 
-  private void doPut(String key, V value) {
-    ByteArrayOutputStream serData = new ByteArrayOutputStream();
-    serialize(value, serData);
-    Document doc = new Document();
-    doc.add(new TextField("key", key, Field.Store.NO));
-    doc.add(new StoredField("data", serData.toByteArray()));
+  @Override
+  public LuceneCache<V> put(long key, V value) {
+    doPut(new Term(longKeyField, BytesRef.deepCopyOf(longKey(key))), value);
+    return this;
+  }
+
+  /**
+   * The key is not copied, it must not be modified afterwards
+   */
+  @Override
+  public LuceneCache<V> put(byte[] key, V value) {
+    doPut(new Term(bytesKeyField, new BytesRef(key)), value);
+    return this;
+  }
+
+  /**
+   * @param key not reused by the caller, the writer and the pending writes keep a reference to it
+   */
+  private void doPut(Term key, V value) {
+    byte[] serData = serialize(value);
+    writeLock.readLock().lock();
     try {
-      writer.updateDocument(new Term("key", key), doc);
+      writer.updateDocument(key, newDocument(key, serData));
+      // only once the document is in the writer, so that a refresh never drops a write it did not see
+      pendingWrites.put(key, serData);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      writeLock.readLock().unlock();
+    }
+    if (writesSinceRefresh.incrementAndGet() >= maxPendingWrites) {
+      refresh();
     }
   }
 
+  /**
+   * Keys that are not in the index yet are added without the delete-by-term of {@link IndexWriter#updateDocument}.
+   * Single-key writes wait until the batch is visible.
+   */
   @Override
-  public Iterable<V> values() {
-    reopenReader();
-    return new LuceneIterable();
+  public LuceneCache<V> putAll(Map<String, V> entries) {
+    writeLock.writeLock().lock();
+    try {
+      refresh();
+      IndexSearcher searcher = searcherManager.acquire();
+      try {
+        Terms terms = MultiFields.getTerms(searcher.getIndexReader(), keyField);
+        TermsEnum termsEnum = terms == null ? null : terms.iterator(null);
+        List<Document> newDocs = new ArrayList<>();
+        for (Map.Entry<String, V> entry : entries.entrySet()) {
+          Term key = new Term(keyField, entry.getKey());
+          Document doc = newDocument(key, serialize(entry.getValue()));
+          if (termsEnum != null && termsEnum.seekExact(key.bytes())) {
+            writer.updateDocument(key, doc);
+          } else {
+            newDocs.add(doc);
+          }
+        }
+        writer.addDocuments(newDocs);
+      } finally {
+        searcherManager.release(searcher);
+      }
+      // make the whole batch visible at once rather than buffering it, and before the next lookups
+      refresh();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      writeLock.writeLock().unlock();
+    }
+    return this;
   }
 
-  private void reopenReader() {
+  /**
+   * As in {@link #putAll(Map)}, keys that are not in the index yet are added without delete-by-term, so the
+   * loaded keys must be distinct, and single-key writes wait until the load is visible. Workers serialize with
+   * their own Kryo and add documents to the shared writer concurrently.
+   */
+  @Override
+  public long bulkLoad(Iterator<Map.Entry<String, V>> entries, int threads) {
+    long count;
+    writeLock.writeLock().lock();
     try {
-      DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer, true);
-      if (newReader != null) {
-        reader.close();
-        reader = newReader;
-        searcher = new IndexSearcher(reader);
+      refresh();
+      final IndexSearcher searcher = searcherManager.acquire();
+      try {
+        count = new BulkLoader<String, V>(threads) {
+          @Override
+          Worker<String, V> newWorker() throws IOException {
+            Terms terms = MultiFields.getTerms(searcher.getIndexReader(), keyField);
+            final TermsEnum termsEnum = terms == null ? null : terms.iterator(null);
+            return new Worker<String, V>() {
+              @Override
+              void load(String key, V value) throws IOException {
+                Term term = new Term(keyField, key);
+                Document doc = newDocument(term, serialize(value));
+                if (termsEnum != null && termsEnum.seekExact(term.bytes())) {
+                  writer.updateDocument(term, doc);
+                } else {
+                  writer.addDocument(doc);
+                }
+              }
+            };
+          }
+        }.load(entries);
+      } finally {
+        searcherManager.release(searcher);
       }
+      refresh();
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      writeLock.writeLock().unlock();
     }
+    return count;
   }
 
-  private class LuceneIterable implements Iterable<V> {
+  /**
+   * Documents are only added, without any lookup nor delete-by-term, and single-key writes wait until the load is
+   * visible. When the index belongs to this cache, the writer buffers more documents before flushing a segment
+   * during the load, and flushed segments are not packed into compound files. The writer of an index shared by the
+   * caches of a {@link CacheFactory} keeps its settings, as the other caches write with it.
+   */
+  @Override
+  public long loadSorted(Iterator<Map.Entry<String, V>> sortedEntries) {
+    long count = 0;
+    writeLock.writeLock().lock();
+    try {
+      refresh();
+      if (hasStringKeys()) {
+        throw new IllegalStateException("Sorted load needs an empty cache");
+      }
+      LiveIndexWriterConfig config = writer.getConfig();
+      double ramBufferSizeMB = config.getRAMBufferSizeMB();
+      boolean useCompoundFile = config.getUseCompoundFile();
+      if (ownsIndex) {
+        config.setRAMBufferSizeMB(SORTED_LOAD_RAM_BUFFER_MB).setUseCompoundFile(false);
+      }
+      try {
+        while (sortedEntries.hasNext()) {
+          Map.Entry<String, V> entry = sortedEntries.next();
+          writer.addDocument(newDocument(new Term(keyField, entry.getKey()), serialize(entry.getValue())));
+          count++;
+        }
+      } finally {
+        if (ownsIndex) {
+          config.setRAMBufferSizeMB(ramBufferSizeMB).setUseCompoundFile(useCompoundFile);
+        }
+      }
+      refresh();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      writeLock.writeLock().unlock();
+    }
+    return count;
+  }
+
+  private boolean hasStringKeys() throws IOException {
+    IndexSearcher searcher = searcherManager.acquire();
+    try {
+      return MultiFields.getTerms(searcher.getIndexReader(), keyField) != null;
+    } finally {
+      searcherManager.release(searcher);
+    }
+  }
+
+  private Document newDocument(Term key, byte[] serData) {
+    Document doc = new Document();
+    doc.add(new Field(key.field(), new BinaryTokenStream(key.bytes()), KEY_TYPE));
+    doc.add(new BinaryDocValuesField(dataField, new BytesRef(serData)));
+    return doc;
+  }
+
+  /**
+   * Values of String keys, then of {@code long} keys, then of {@code byte[]} keys, each in the order of the key
+   * terms. Pending writes are made visible before each iteration. Values are read in batches, see
+   * {@link TermIterator}.
+   */
+  @Override
+  public Iterable<V> values() {
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new ValueIterator();
+      }
+    };
+  }
+
+  /**
+   * Walks the key fields one after the other
+   */
+  private final class ValueIterator implements Iterator<V> {
+    private final Iterator<String> fields = Arrays.asList(keyField, longKeyField, bytesKeyField).iterator();
+    private Iterator<V> current = Collections.emptyIterator();
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext() && fields.hasNext()) {
+        current = new FieldValueIterator(fields.next());
+      }
+      return current.hasNext();
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
 
     @Override
-    public Iterator<V> iterator() {
-      return new LuceneIterator();
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
     }
+  }
 
+  /**
+   * Pending writes are made visible before each iteration. Entries are read in batches, see {@link TermIterator}.
+   */
+  @Override
+  public Iterable<Map.Entry<String, V>> range(final String fromKey, final String toKey) {
+    return new Iterable<Map.Entry<String, V>>() {
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        return new EntryIterator(new BytesRef(fromKey), new BytesRef(toKey), null);
+      }
+    };
   }
 
-  private final class LuceneIterator implements Iterator<V> {
+  /**
+   * Pending writes are made visible before each iteration. Entries are read in batches, see {@link TermIterator}.
+   */
+  @Override
+  public Iterable<Map.Entry<String, V>> prefix(final String prefix) {
+    return new Iterable<Map.Entry<String, V>>() {
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        BytesRef prefixBytes = new BytesRef(prefix);
+        return new EntryIterator(prefixBytes, null, prefixBytes);
+      }
+    };
+  }
 
-    private int position;
-    private Bits liveDocs;
+  /**
+   * String keys in the order of their UTF-8 bytes, read from the terms without reading the values. Pending writes
+   * are made visible before each iteration. Keys are read in batches, see {@link TermIterator}.
+   */
+  public Iterable<String> keys() {
+    return new Iterable<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new KeyIterator();
+      }
+    };
+  }
 
-    public LuceneIterator() {
-      position = 0;
-      liveDocs = MultiFields.getLiveDocs(reader);
+  /**
+   * Walks the key terms of a field in all the segments in order, with the live document of each term. Keys are in
+   * the order of their bytes, which is the order of the UTF-8 bytes for String keys.
+   * <p>
+   * Terms are read in batches of {@link #SCAN_BATCH_SIZE}, each one from a searcher acquired and released for the
+   * batch, the next batch seeking to the term after the last one read. No searcher is held between two calls, so an
+   * iteration can be abandoned without keeping old segments open. Writes made visible during the iteration are seen
+   * by the next batches.
+   * </p>
+   */
+  private abstract class TermIterator<T> implements Iterator<T> {
+
+    private final String field;
+    private final BytesRef toKey;
+    private final BytesRef prefix;
+    private final Deque<T> batch = new ArrayDeque<>(SCAN_BATCH_SIZE);
+    private BytesRef nextFrom;
+    private boolean afterNextFrom;
+
+    private TermIterator(String field, BytesRef fromKey, @Nullable BytesRef toKey, @Nullable BytesRef prefix) {
+      this.field = field;
+      this.toKey = toKey;
+      this.prefix = prefix;
+      this.nextFrom = BytesRef.deepCopyOf(fromKey);
+      refresh();
     }
 
     @Override
     public boolean hasNext() {
-      return position < reader.maxDoc() && (liveDocs == null || liveDocs.get(position));
+      if (batch.isEmpty() && nextFrom != null) {
+        readBatch();
+      }
+      return !batch.isEmpty();
     }
 
-    @Override
-    public V next() {
+    /**
+     * Reads the next terms of the range that have a live document, starting at {@code nextFrom}, or after it when
+     * it was the last term of the previous batch
+     */
+    private void readBatch() {
       try {
-        Document doc = reader.document(position++);
-        byte[] serData = doc.getBinaryValue("data").bytes;
-        return deserialize(serData);
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+          IndexReader reader = searcher.getIndexReader();
+          Terms terms = MultiFields.getTerms(reader, field);
+          if (terms == null) {
+            nextFrom = null;
+            return;
+          }
+          TermsEnum termsEnum = terms.iterator(null);
+          Bits liveDocs = MultiFields.getLiveDocs(reader);
+          BinaryDocValues values = MultiDocValues.getBinaryValues(reader, dataField);
+          BytesRef term = termsEnum.seekCeil(nextFrom) == TermsEnum.SeekStatus.END ? null : termsEnum.term();
+          if (term != null && afterNextFrom && term.bytesEquals(nextFrom)) {
+            term = termsEnum.next();
+          }
+          DocsEnum docs = null;
+          while (term != null && inRange(term)) {
+            docs = termsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+            int doc = docs.nextDoc();
+            if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+              batch.add(read(term, values, doc));
+              if (batch.size() == SCAN_BATCH_SIZE) {
+                nextFrom = BytesRef.deepCopyOf(term);
+                afterNextFrom = true;
+                return;
+              }
+            }
+            term = termsEnum.next();
+          }
+          nextFrom = null;
+        } finally {
+          searcherManager.release(searcher);
+        }
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
 
+    private boolean inRange(BytesRef term) {
+      return toKey != null ? term.compareTo(toKey) < 0 : StringHelper.startsWith(term, prefix);
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return batch.poll();
+    }
+
+    /**
+     * Called while the searcher of the batch is held
+     */
+    abstract T read(BytesRef term, BinaryDocValues values, int doc);
+
     @Override
     public void remove() {
       throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  private final class EntryIterator extends TermIterator<Map.Entry<String, V>> {
+    private final BytesRef serData = new BytesRef();
 
+    private EntryIterator(BytesRef fromKey, @Nullable BytesRef toKey, @Nullable BytesRef prefix) {
+      super(keyField, fromKey, toKey, prefix);
+    }
+
+    @Override
+    Map.Entry<String, V> read(BytesRef term, BinaryDocValues values, int doc) {
+      values.get(doc, serData);
+      return new AbstractMap.SimpleImmutableEntry<>(term.utf8ToString(), deserialize(serData));
+    }
+  }
+
+  private final class KeyIterator extends TermIterator<String> {
+    private KeyIterator() {
+      super(keyField, new BytesRef(), null, new BytesRef());
+    }
+
+    @Override
+    String read(BytesRef term, BinaryDocValues values, int doc) {
+      return term.utf8ToString();
     }
   }
 
-  private void serialize(V data, ByteArrayOutputStream serData) {
+  private final class FieldValueIterator extends TermIterator<V> {
+    private final BytesRef serData = new BytesRef();
+
+    private FieldValueIterator(String field) {
+      super(field, new BytesRef(), null, new BytesRef());
+    }
+
+    @Override
+    V read(BytesRef term, BinaryDocValues values, int doc) {
+      values.get(doc, serData);
+      return deserialize(serData);
+    }
+  }
+
+  private byte[] serialize(V data) {
+    ByteArrayOutputStream serData = new ByteArrayOutputStream();
     Output output = new Output(serData);
-    kryo.writeObject(output, data);
+    kryos.get().writeObject(output, data);
     output.close();
+    byte[] bytes = serData.toByteArray();
+    ByteBuffer stored = compression.encode(bytes, 0, bytes.length);
+    if (stored.array() != bytes) {
+      bytes = Arrays.copyOfRange(stored.array(), stored.position(), stored.limit());
+    }
+    listener.serialized(bytes.length);
+    return bytes;
   }
 
   private V deserialize(byte[] serData) {
-    Input input = new Input(serData);
+    return deserialize(new BytesRef(serData));
+  }
+
+  private V deserialize(BytesRef serData) {
+    listener.deserialized(serData.length);
+    ByteBuffer decoded = compression.decode(serData.bytes, serData.offset, serData.length);
+    Input input = new Input(decoded.array(), decoded.position(), decoded.remaining());
     try {
-      return kryo.readObject(input, valueClass);
+      return kryos.get().readObject(input, valueClass);
     } finally {
       input.close();
     }
@@ -187,18 +824,72 @@ public class LuceneCache<V extends Serializable> implements Cache<String, V> {
 
   @Override
   public V get(String key) {
-    reopenReader();
+    return doGet(keyField, new BytesRef(key));
+  }
+
+  @Override
+  public V get(long key) {
+    return doGet(longKeyField, longKey(key));
+  }
+
+  @Override
+  public V get(byte[] key) {
+    return doGet(bytesKeyField, new BytesRef(key));
+  }
+
+  /**
+   * The view is on the doc values bytes read for the current thread, or on the pending write of the key.
+   */
+  @Override
+  public ByteBuffer getRaw(String key) {
+    BytesRef keyBytes = new BytesRef(key);
+    byte[] pending = pending(keyField, keyBytes);
+    if (pending != null) {
+      return compression.decode(pending, 0, pending.length).slice().asReadOnlyBuffer();
+    }
     try {
-      TopDocs topDocs = search(key);
-      if (topDocs.totalHits == 0) {
-        return null;
+      IndexSearcher searcher = searcherManager.acquire();
+      try {
+        BytesRef serData = rawValues.get();
+        if (!lookup(searcher.getIndexReader(), keyField, keyBytes, serData)) {
+          return null;
+        }
+        return compression.decode(serData.bytes, serData.offset, serData.length).slice().asReadOnlyBuffer();
+      } finally {
+        searcherManager.release(searcher);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private V doGet(String field, BytesRef key) {
+    byte[] pending = pending(field, key);
+    if (pending != null) {
+      return deserialize(pending);
+    }
+    try {
+      IndexSearcher searcher = searcherManager.acquire();
+      try {
+        BytesRef serData = new BytesRef();
+        if (!lookup(searcher.getIndexReader(), field, key, serData)) {
+          return null;
+        }
+        return deserialize(serData);
+      } finally {
+        searcherManager.release(searcher);
       }
-      Document doc = searcher.doc(topDocs.scoreDocs[0].doc);
-      byte[] serData = doc.getBinaryValue("data").bytes;
-      return deserialize(serData);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Size in bytes of the index files, including the segments not committed yet and the fields of the other caches
+   * of the index
+   */
+  long diskSize() {
+    return index.diskSize();
+  }
+
 }
@@ -0,0 +1,189 @@
+package bench;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lucene index shared by one or several {@link LuceneCache}: the directory, the writer, the searcher manager and
+ * the Bloom filters of the segments. Each cache has its own fields in the index.
+ * <p>
+ * When filters are enabled, each segment has a Bloom filter of its terms per indexed field. As segments are
+ * immutable, a filter is built once, from the terms of the segment, when a searcher opens it, and dropped when the
+ * segment is closed.
+ * </p>
+ * <p>
+ * A persistent index is committed when closed, and reopened by the next index on the same directory if the header
+ * written at the close is still valid, see {@link StoreHeader}. The filters of the reopened segments are built
+ * from their terms by the first searcher.
+ * </p>
+ */
+final class LuceneIndex {
+
+  private static final String PERSISTENT_FORMAT = "lucene-4.7:1";
+
+  private final File dir;
+  private final boolean persistent;
+  private final boolean reopened;
+  private final StoreHeader header;
+  private final IndexWriter writer;
+  private final SearcherManager searcherManager;
+  private final double segmentFilterFpp;
+  private final ConcurrentMap<Object, Map<String, BloomFilter>> segmentFilters = new ConcurrentHashMap<>();
+  private volatile CacheListener listener = CacheListener.NONE;
+
+  LuceneIndex(File dir, double segmentFilterFpp) {
+    this(dir, segmentFilterFpp, false);
+  }
+
+  /**
+   * @param dir deleted first, unless it has a persistent index to reopen
+   * @param segmentFilterFpp false positive rate of the Bloom filters of the segments, 0 to disable them
+   * @param persistent true to keep the index when closed, and to reopen it if valid
+   */
+  LuceneIndex(File dir, double segmentFilterFpp, boolean persistent) {
+    this.dir = dir;
+    this.segmentFilterFpp = segmentFilterFpp;
+    this.persistent = persistent;
+    this.header = new StoreHeader(PERSISTENT_FORMAT, dir);
+    this.reopened = persistent && header.checkAndClear();
+    try {
+      if (!reopened) {
+        // files of the previous index stay until the first commit, even with OpenMode.CREATE
+        FileUtils.deleteQuietly(dir);
+      }
+      IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_47, new KeywordAnalyzer());
+      config.setOpenMode(reopened ? OpenMode.APPEND : OpenMode.CREATE);
+      writer = new IndexWriter(FSDirectory.open(dir), config);
+      searcherManager = new SearcherManager(writer, true, segmentFilterFpp > 0 ? new SearcherFactory() {
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+          filterSegments(reader);
+          return new IndexSearcher(reader);
+        }
+      } : null);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  IndexWriter writer() {
+    return writer;
+  }
+
+  SearcherManager searcherManager() {
+    return searcherManager;
+  }
+
+  /**
+   * @return true if the index of a previous persistent cache was reopened rather than created
+   */
+  boolean wasReopened() {
+    return reopened;
+  }
+
+  boolean hasSegmentFilters() {
+    return segmentFilterFpp > 0;
+  }
+
+  /**
+   * Receives the events of the filter builds
+   */
+  void setListener(CacheListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Builds the filters of the segments opened for the first time. The filters are sized from the number of
+   * documents, which is an upper bound of the number of terms of each key field.
+   */
+  private void filterSegments(IndexReader reader) throws IOException {
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      AtomicReader segmentReader = leaf.reader();
+      Fields fields = segmentReader.fields();
+      if (fields == null || segmentFilters.containsKey(segmentReader.getCoreCacheKey())) {
+        continue;
+      }
+      Map<String, BloomFilter> filters = new HashMap<>();
+      for (String field : fields) {
+        Terms terms = fields.terms(field);
+        if (terms != null) {
+          BloomFilter filter = new BloomFilter(segmentReader.maxDoc(), segmentFilterFpp);
+          TermsEnum termsEnum = terms.iterator(null);
+          for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            filter.addHash(BloomFilter.hash(term.bytes, term.offset, term.length));
+          }
+          filters.put(field, filter);
+        }
+      }
+      segmentFilters.put(segmentReader.getCoreCacheKey(), filters);
+      if (segmentReader instanceof SegmentReader) {
+        ((SegmentReader) segmentReader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+          @Override
+          public void onClose(Object ownerCoreCacheKey) {
+            segmentFilters.remove(ownerCoreCacheKey);
+          }
+        });
+      }
+      listener.event(LuceneCache.SEGMENT_FILTER_EVENT);
+    }
+  }
+
+  /**
+   * Segments opened before their filter was built are always read
+   *
+   * @param hash hash of the term bytes, see {@link BloomFilter#hash(byte[], int, int)}
+   */
+  boolean segmentMightContain(AtomicReader segmentReader, String field, long hash) {
+    Map<String, BloomFilter> filters = segmentFilters.get(segmentReader.getCoreCacheKey());
+    if (filters == null) {
+      return true;
+    }
+    BloomFilter filter = filters.get(field);
+    return filter != null && filter.mightContainHash(hash);
+  }
+
+  /**
+   * Closing the writer commits all the documents, including the ones not visible to the searcher yet
+   */
+  void close() {
+    try {
+      searcherManager.close();
+      writer.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (persistent) {
+      header.write();
+    }
+  }
+
+  /**
+   * Size in bytes of the index files, including the segments not committed yet
+   */
+  long diskSize() {
+    return FileUtils.sizeOfDirectory(dir);
+  }
+}
@@ -1,9 +1,12 @@
 package bench;
 
-import java.io.Serializable;
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Main {
 
@@ -11,32 +14,92 @@ public class Main {
   private static final long COUNT = 1_000_000;
   private static final long RANDOM_SELECT_COUNT = 100_000;
   private static final long RANDOM_UPDATE_COUNT = 10_000;
+  private static final int BATCH_SIZE = 10_000;
+  private static final File MMAP_DIR = new File("target/mmaplog");
   private static List<Integer> toBeUpdated;
   private static List<Integer> toBeSelected;
   private static String bigData;
 
+  private static final String DEFAULT_PAGE_SIZES = "2048,4096,8192,16384";
+  private static final String DEFAULT_POOL_SIZES_MB = "16,64,256";
+  private static final int DEFAULT_MAX_PENDING_WRITES = 1_000;
+  private static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+
+  /**
+   * With {@code matrix [pageSizes] [poolSizesInMB]} as arguments, for instance {@code matrix 4096,16384 64,512},
+   * only Persistit is run, once for each combination of page size and buffer pool size.
+   * <p>
+   * With {@code writebehind [maxPendingWrites] [flushIntervalMs]} as arguments, Persistit and Lucene are run behind
+   * a {@link WriteBehindCache}.
+   * </p>
+   */
   public static void main(String[] args) {
     generateData();
     generateIdToSelect();
     generateIdToUpdate();
 
+    if (args.length > 0 && "matrix".equals(args[0])) {
+      matrix(args.length > 1 ? args[1] : DEFAULT_PAGE_SIZES, args.length > 2 ? args[2] : DEFAULT_POOL_SIZES_MB);
+      return;
+    }
+    if (args.length > 0 && "writebehind".equals(args[0])) {
+      writeBehind(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_PENDING_WRITES,
+        args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_FLUSH_INTERVAL_MS);
+      return;
+    }
+
     System.out.println("------- PERSISIT 1 -----------");
-    test(new PersisitItCache<String, Measure>());
+    test("persistit", newPersistitCache());
 
     System.out.println("------- LUCENE 1 -----------");
-    test(new LuceneCache<>(Measure.class));
+    test("lucene", new LuceneCache<>(Measure.class));
+
+    System.out.println("------- MMAP LOG 1 -----------");
+    test("mmap", new MmapLogCache<>(Measure.class, MMAP_DIR));
 
     // System.out.println("------- MAPDB 1 -----------");
-    // test(new MapDBCache<Measure>());
+    // test("mapdb", new MapDBCache<Measure>());
 
     System.out.println("------- PERSISIT 2 -----------");
-    test(new PersisitItCache<String, Measure>());
+    test("persistit", newPersistitCache());
 
     System.out.println("------- LUCENE 2 -----------");
-    test(new LuceneCache<>(Measure.class));
+    test("lucene", new LuceneCache<>(Measure.class));
+
+    System.out.println("------- MMAP LOG 2 -----------");
+    test("mmap", new MmapLogCache<>(Measure.class, MMAP_DIR));
 
     // System.out.println("------- MAPDB 2 -----------");
-    // test(new MapDBCache<Measure>());
+    // test("mapdb", new MapDBCache<Measure>());
+  }
+
+  private static void matrix(String pageSizes, String poolSizesMB) {
+    for (String pageSize : pageSizes.split(",")) {
+      for (String poolSizeMB : poolSizesMB.split(",")) {
+        PersistitCacheConfig config = PersistitCacheConfig.builder()
+          .setPageSize(Integer.parseInt(pageSize.trim()))
+          .setBufferMemory(Long.parseLong(poolSizeMB.trim()) << 20)
+          .setValueCoder(Measure.class, new KryoValueCoder())
+          .build();
+        System.out.println("------- PERSISIT " + config + " -----------");
+        test("persistit", new PersisitItCache<String, Measure>(config));
+      }
+    }
+  }
+
+  private static void writeBehind(int maxPendingWrites, long flushIntervalMs) {
+    System.out.println("------- PERSISIT WRITE-BEHIND -----------");
+    test("persistit", new WriteBehindCache<>(newPersistitCache(), maxPendingWrites, flushIntervalMs));
+
+    System.out.println("------- LUCENE WRITE-BEHIND -----------");
+    test("lucene", new WriteBehindCache<>(new LuceneCache<>(Measure.class), maxPendingWrites, flushIntervalMs));
+  }
+
+  /**
+   * Values are encoded by Kryo, as in the other backends, which gives access to raw values
+   */
+  private static PersisitItCache<String, Measure> newPersistitCache() {
+    return new PersisitItCache<>(PersistitCacheConfig.builder().setValueCoder(Measure.class, new KryoValueCoder()).build());
   }
 
   private static void generateIdToUpdate() {
@@ -61,10 +124,19 @@ public class Main {
     bigData = data.toString();
   }
 
-  private static void test(Cache<String, Measure> cache) {
+  private static void test(String name, Cache<String, Measure> backend) {
+    MeteredCache<String, Measure> cache = new MeteredCache<>(name, backend);
     long start = System.currentTimeMillis();
+    Map<String, Measure> batch = new HashMap<>();
     for (long i = 0; i < COUNT; i++) {
-      cache.put("key" + i, new Measure("key" + i, bigData, i, new Date()));
+      batch.put("key" + i, new Measure("key" + i, bigData, i, new Date()));
+      if (batch.size() == BATCH_SIZE) {
+        cache.putAll(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      cache.putAll(batch);
     }
     System.out.println("Insert: " + (System.currentTimeMillis() - start) + "ms");
 
@@ -97,6 +169,18 @@ public class Main {
     }
     System.out.println(RANDOM_SELECT_COUNT + " random selects: " + (System.currentTimeMillis() - start) + "ms");
 
+    if (backend instanceof RawValueCache) {
+      start = System.currentTimeMillis();
+      for (int i = 0; i < RANDOM_SELECT_COUNT; i++) {
+        Integer id = toBeSelected.get(i);
+        ByteBuffer raw = cache.getRaw("key" + id);
+        if (raw == null || !Long.valueOf(id).equals(Measure.value(raw))) {
+          throw new RuntimeException();
+        }
+      }
+      System.out.println(RANDOM_SELECT_COUNT + " random selects of value only: " + (System.currentTimeMillis() - start) + "ms");
+    }
+
     start = System.currentTimeMillis();
     for (int i = 0; i < RANDOM_UPDATE_COUNT; i++) {
       Integer id = toBeUpdated.get(i);
@@ -113,42 +197,16 @@ public class Main {
     }
     System.out.println(RANDOM_UPDATE_COUNT + " random updates: " + (System.currentTimeMillis() - start) + "ms");
 
-    cache.close();
-    System.gc();
-  }
-
-  private static class Measure implements Serializable {
-    private String key;
-    private String data;
-    private Long value;
-    private Date date;
-
-    public Measure(String key, String data, Long value, Date date) {
-      this.key = key;
-      this.data = data;
-      this.value = value;
-      this.date = date;
-    }
-
-    public String getData() {
-      return data;
+    cache.printReport(System.out);
+    if (backend instanceof PersisitItCache) {
+      PersisitItCache<String, Measure> persistit = (PersisitItCache<String, Measure>) backend;
+      System.out.println(String.format("Buffer pool: %d buffers, hit ratio %.3f", persistit.bufferCount(), persistit.bufferPoolHitRatio()));
     }
-
-    public String getKey() {
-      return key;
-    }
-
-    public void setData(String data) {
-      this.data = data;
-    }
-
-    public void setValue(Long value) {
-      this.value = value;
-    }
-
-    public Long getValue() {
-      return value;
+    if (backend instanceof WriteBehindCache) {
+      System.out.println("Write-behind: " + backend);
     }
+    cache.close();
+    System.gc();
   }
 
 }
@@ -22,50 +22,184 @@ package bench;
 
 import org.apache.commons.io.FileUtils;
 import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.Fun;
+import org.mapdb.Pump;
+import org.mapdb.Serializer;
+import org.mapdb.Store;
 
+import javax.annotation.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 
 /**
  * Factory of caches
+ * <p>
+ * String, {@code long} and {@code byte[]} keys go to three different trees, each one with the key serializer of its
+ * type: numeric keys are delta-packed longs and must be positive or zero.
+ * </p>
+ * <p>
+ * Trees created from sorted entries are built bottom-up by the MapDB pump, which needs the entries from the
+ * greatest key down. The entries are first sorted in reverse order by batches spilled to temporary files, then
+ * merged, as the {@code pumpPresort} option of the tree map maker would do if this version of MapDB applied it to
+ * maps.
+ * </p>
+ * <p>
+ * A persistent cache keeps its file when closed. The next persistent cache on the same file reopens its trees,
+ * unless the header written at the close does not match. Reopened trees take their settings from the MapDB catalog,
+ * and read their values with the serializer of the cache.
+ * </p>
  *
  * @since 3.6
  */
-public class MapDBCache<V extends Serializable> implements Cache<String, V> {
+public class MapDBCache<V extends Serializable> implements Cache<String, V>, LongKeyCache<V>, BytesKeyCache<V>, SortedBulkLoader<String, V>,
+  Instrumented {
+
+  private static final String STRING_CACHE = "sample";
+  private static final String LONG_CACHE = "sample-long";
+  private static final String BYTES_CACHE = "sample-bytes";
+  private static final String LOADING_PREFIX = "loading-";
+  private static final int PRESORT_BATCH_SIZE = 10_000;
+  private static final File DEFAULT_FILE = new File("target/mapdb.cache");
+  private static final String PERSISTENT_FORMAT = "mapdb-0.9.13:1";
 
   private File tempFile;
+  private final boolean persistent;
+  private StoreHeader header;
+  private boolean reopened;
   private DB db;
   private ConcurrentNavigableMap<String, V> cache;
+  private ConcurrentNavigableMap<Long, V> longCache;
+  private ConcurrentNavigableMap<byte[], V> bytesCache;
+  private final KryoSerializer valueSerializer;
 
   public MapDBCache() {
-    initMapDB();
+    this(Compression.NONE);
+  }
+
+  public MapDBCache(Compression compression) {
+    this(DEFAULT_FILE, compression, false);
+  }
+
+  /**
+   * Persistent cache in the given file, see the class comment. Values must be stored with the same compression.
+   */
+  public MapDBCache(File persistentFile, Compression compression) {
+    this(persistentFile, compression, true);
+  }
+
+  /**
+   * @param file data file, deleted when the cache is closed unless it is persistent
+   * @param persistent true to keep the file when the cache is closed, and to reopen it if valid
+   */
+  public MapDBCache(File file, Compression compression, boolean persistent) {
+    valueSerializer = new KryoSerializer(compression);
+    this.persistent = persistent;
+    initMapDB(file, compression);
   }
 
-  private void initMapDB() {
+  private void initMapDB(File file, Compression compression) {
     try {
-      tempFile = new File("target/mapdb.cache");
+      tempFile = file;
+      // MapDB stores the index of the records and the transaction log next to the data file
+      File[] files = {file, new File(file.getPath() + ".p"), new File(file.getPath() + ".t")};
+      header = new StoreHeader(PERSISTENT_FORMAT + ":" + compression.codec(), files);
+      reopened = persistent && header.checkAndClear();
+      if (!reopened) {
+        for (File f : files) {
+          FileUtils.deleteQuietly(f);
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+      }
       db = DBMaker.newFileDB(tempFile)
         .cacheSoftRefEnable()
         .mmapFileEnableIfSupported()
         .transactionDisable()
         .make();
-      this.cache = createStringCache("sample");
+      if (reopened) {
+        this.cache = reopenCache(STRING_CACHE);
+        this.longCache = reopenCache(LONG_CACHE);
+        this.bytesCache = reopenCache(BYTES_CACHE);
+      } else {
+        this.cache = createStringCache(STRING_CACHE);
+        this.longCache = createLongCache(LONG_CACHE);
+        this.bytesCache = createBytesCache(BYTES_CACHE);
+      }
     } catch (Exception e) {
       throw new IllegalStateException("Fail to start caches", e);
     }
   }
 
+  /**
+   * Same as {@link DB#getTreeMap(String)}, but values are read with the serializer of this cache rather than with the
+   * one stored in the catalog. MapDB deserializes the catalog one without its transient state: no Kryo instances,
+   * no listener and no compression buffers.
+   */
+  @SuppressWarnings("unchecked")
+  private <K, V> ConcurrentNavigableMap<K, V> reopenCache(String cacheName) {
+    Map<String, Object> catalog = db.getCatalog();
+    if (!"TreeMap".equals(catalog.get(cacheName + ".type"))) {
+      throw new IllegalStateException("Missing cache in MapDB catalog: " + cacheName);
+    }
+    Comparator<K> comparator = (Comparator<K>) catalog.get(cacheName + ".comparator");
+    BTreeMap<K, V> tree = new BTreeMap<>(db.getEngine(),
+      (Long) catalog.get(cacheName + ".rootRecidRef"),
+      (Integer) catalog.get(cacheName + ".maxNodeSize"),
+      (Boolean) catalog.get(cacheName + ".valuesOutsideNodes"),
+      (Long) catalog.get(cacheName + ".counterRecid"),
+      (BTreeKeySerializer<K>) catalog.get(cacheName + ".keySerializer"),
+      (Serializer<V>) valueSerializer,
+      comparator != null ? comparator : (Comparator<K>) BTreeMap.COMPARABLE_COMPARATOR,
+      (Integer) catalog.get(cacheName + ".numberOfNodeMetas"),
+      false);
+    return tree;
+  }
+
+  /**
+   * @return true if the file of a previous persistent cache was reopened rather than created
+   */
+  public boolean wasReopened() {
+    return reopened;
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    valueSerializer.setListener(listener);
+  }
+
+  /**
+   * A persistent cache keeps its files, the other ones are deleted
+   */
   @Override
   public void close() {
     if (db != null) {
       db.close();
       db = null;
+      if (persistent) {
+        header.write();
+      }
+    }
+    if (!persistent) {
+      FileUtils.deleteQuietly(tempFile);
     }
-    FileUtils.deleteQuietly(tempFile);
     tempFile = null;
   }
 
@@ -75,14 +209,106 @@ public class MapDBCache<V extends Serializable> implements Cache<String, V> {
     return this;
   }
 
+  @Override
+  public MapDBCache<V> put(long key, V value) {
+    longCache.put(key, value);
+    return this;
+  }
+
+  @Override
+  public MapDBCache<V> put(byte[] key, V value) {
+    bytesCache.put(key, value);
+    return this;
+  }
+
+  /**
+   * Inserts in key order, so that the BTree is filled from left to right
+   */
+  @Override
+  public Cache<String, V> putAll(Map<String, V> entries) {
+    cache.putAll(entries instanceof SortedMap ? entries : new TreeMap<>(entries));
+    return this;
+  }
+
+  /**
+   * The tree of String keys is rebuilt from the entries, it must be empty. The new tree is built under another name
+   * and replaces the empty one once complete, so that the cache is unchanged when the entries fail.
+   */
+  @Override
+  public long loadSorted(Iterator<Map.Entry<String, V>> sortedEntries) {
+    if (!cache.isEmpty()) {
+      throw new IllegalStateException("Sorted load needs an empty cache");
+    }
+    if (!sortedEntries.hasNext()) {
+      // the pump of MapDB fails on an empty source
+      return 0;
+    }
+    // MapDB deletes and renames every catalog entry starting with the name, which must not be a prefix of the others
+    String loadingName = LOADING_PREFIX + STRING_CACHE;
+    CountingIterator<Map.Entry<String, V>> counted = new CountingIterator<>(sortedEntries);
+    try {
+      ConcurrentNavigableMap<String, V> loaded = createStringCache(loadingName, counted);
+      // Overwrites the catalog entries of the empty tree, whose root node is left unused in the store
+      db.rename(loadingName, STRING_CACHE);
+      cache = loaded;
+    } finally {
+      if (db.exists(loadingName)) {
+        db.delete(loadingName);
+      }
+    }
+    return counted.count;
+  }
+
   @Override
   public V get(String key) {
     return cache.get(key);
   }
 
+  @Override
+  public V get(long key) {
+    return longCache.get(key);
+  }
+
+  @Override
+  public V get(byte[] key) {
+    return bytesCache.get(key);
+  }
+
+  /**
+   * Values of String keys, then of {@code long} keys, then of {@code byte[]} keys
+   */
   @Override
   public Iterable<V> values() {
-    return cache.values();
+    final List<Collection<V>> trees = Arrays.asList(cache.values(), longCache.values(), bytesCache.values());
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new ConcatIterator<>(trees.iterator());
+      }
+    };
+  }
+
+  /**
+   * View of the String keys, read from the tree while iterating
+   */
+  public NavigableSet<String> keys() {
+    return cache.keySet();
+  }
+
+  /**
+   * View of the String tree, values are deserialized while iterating
+   */
+  @Override
+  public Iterable<Map.Entry<String, V>> range(String fromKey, String toKey) {
+    return cache.subMap(fromKey, true, toKey, false).entrySet();
+  }
+
+  /**
+   * View of the String tree, values are deserialized while iterating
+   */
+  @Override
+  public Iterable<Map.Entry<String, V>> prefix(String prefix) {
+    return cache.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet();
   }
 
   @Override
@@ -90,33 +316,213 @@ public class MapDBCache<V extends Serializable> implements Cache<String, V> {
     return cache.containsKey(key);
   }
 
+  @Override
+  public boolean containsKey(long key) {
+    return longCache.containsKey(key);
+  }
+
+  @Override
+  public boolean containsKey(byte[] key) {
+    return bytesCache.containsKey(key);
+  }
+
   public <V extends Serializable> ConcurrentNavigableMap<String, V> createStringCache(String cacheName) {
-    return createCache(cacheName, BTreeKeySerializer.STRING);
+    return createCache(cacheName, BTreeKeySerializer.STRING, null);
+  }
+
+  /**
+   * @param sortedEntries initial entries, in ascending key order and without duplicate keys
+   */
+  public <V extends Serializable> ConcurrentNavigableMap<String, V> createStringCache(String cacheName, Iterator<Map.Entry<String, V>> sortedEntries) {
+    return createCache(cacheName, BTreeKeySerializer.STRING, sortedEntries);
+  }
+
+  public <V extends Serializable> ConcurrentNavigableMap<Long, V> createLongCache(String cacheName) {
+    return createCache(cacheName, BTreeKeySerializer.ZERO_OR_POSITIVE_LONG, null);
+  }
+
+  public <V extends Serializable> ConcurrentNavigableMap<byte[], V> createBytesCache(String cacheName) {
+    try {
+      return db
+        .createTreeMap(cacheName)
+        .keySerializer(BTreeKeySerializer.BASIC)
+        .comparator(Fun.BYTE_ARRAY_COMPARATOR)
+        .valueSerializer(valueSerializer)
+        .make();
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to create cache: " + cacheName, e);
+    }
   }
 
   public <A, B, V extends Serializable> ConcurrentNavigableMap<Fun.Tuple2<A, B>, V> createTuple2Cache(String cacheName) {
-    return createCache(cacheName, BTreeKeySerializer.TUPLE2);
+    return createTuple2Cache(cacheName, null);
+  }
+
+  /**
+   * @param sortedEntries initial entries, in ascending key order and without duplicate keys
+   */
+  public <A, B, V extends Serializable> ConcurrentNavigableMap<Fun.Tuple2<A, B>, V> createTuple2Cache(String cacheName,
+    @Nullable Iterator<Map.Entry<Fun.Tuple2<A, B>, V>> sortedEntries) {
+    // MapDB declares the tuple serializers as raw types
+    @SuppressWarnings("unchecked")
+    BTreeKeySerializer<Fun.Tuple2<A, B>> keySerializer = BTreeKeySerializer.TUPLE2;
+    return createCache(cacheName, keySerializer, sortedEntries);
   }
 
   public <A, B, C, V extends Serializable> ConcurrentNavigableMap<Fun.Tuple3<A, B, C>, V> createTuple3Cache(String cacheName) {
-    return createCache(cacheName, BTreeKeySerializer.TUPLE3);
+    return createTuple3Cache(cacheName, null);
+  }
+
+  /**
+   * @param sortedEntries initial entries, in ascending key order and without duplicate keys
+   */
+  public <A, B, C, V extends Serializable> ConcurrentNavigableMap<Fun.Tuple3<A, B, C>, V> createTuple3Cache(String cacheName,
+    @Nullable Iterator<Map.Entry<Fun.Tuple3<A, B, C>, V>> sortedEntries) {
+    @SuppressWarnings("unchecked")
+    BTreeKeySerializer<Fun.Tuple3<A, B, C>> keySerializer = BTreeKeySerializer.TUPLE3;
+    return createCache(cacheName, keySerializer, sortedEntries);
   }
 
-  private <K, V extends Serializable> ConcurrentNavigableMap<K, V> createCache(String cacheName, BTreeKeySerializer<K> keySerializer) {
+  private <K, V extends Serializable> ConcurrentNavigableMap<K, V> createCache(String cacheName, BTreeKeySerializer<K> keySerializer,
+    @Nullable Iterator<Map.Entry<K, V>> sortedEntries) {
     try {
-      ConcurrentNavigableMap<K, V> map = db
+      DB.BTreeMapMaker maker = db
         .createTreeMap(cacheName)
         .keySerializer(keySerializer)
-        .valueSerializer(new KryoSerializer())
         // .valuesOutsideNodesEnable()
-        .make();
-      return map;
+        .valueSerializer(valueSerializer);
+      if (sortedEntries != null) {
+        maker.pumpSource(reverseOrder(sortedEntries, keySerializer.getComparator()));
+      }
+      return maker.make();
     } catch (Exception e) {
       throw new IllegalStateException("Fail to create cache: " + cacheName, e);
     }
   }
 
+  private <K, V> Iterator<Fun.Tuple2<K, V>> reverseOrder(final Iterator<Map.Entry<K, V>> entries, final Comparator<K> keyComparator) {
+    Iterator<Fun.Tuple2<K, V>> tuples = new Iterator<Fun.Tuple2<K, V>>() {
+      @Override
+      public boolean hasNext() {
+        return entries.hasNext();
+      }
+
+      @Override
+      public Fun.Tuple2<K, V> next() {
+        Map.Entry<K, V> entry = entries.next();
+        return Fun.t2(entry.getKey(), entry.getValue());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Remove not supported");
+      }
+    };
+    Comparator<Fun.Tuple2<K, V>> reverse = new Comparator<Fun.Tuple2<K, V>>() {
+      @Override
+      public int compare(Fun.Tuple2<K, V> t1, Fun.Tuple2<K, V> t2) {
+        return keyComparator.compare(t2.a, t1.a);
+      }
+    };
+    @SuppressWarnings("unchecked")
+    Serializer<Object> keySerializer = db.getDefaultSerializer();
+    return Pump.sort(tuples, false, PRESORT_BATCH_SIZE, reverse, new SpillSerializer<K, V>(keySerializer));
+  }
+
   File tempFile() {
     return tempFile;
   }
+
+  /**
+   * Size in bytes used in the store. The files are mapped and preallocated, their length does not tell much.
+   */
+  long diskSize() {
+    return Store.forDB(db).getCurrSize();
+  }
+
+  /**
+   * Serializer of the entries spilled by the presort. Values are written by Kryo rather than by the MapDB default
+   * serializer, which is several times slower on them, and are not compressed as the files are short-lived.
+   */
+  private static class SpillSerializer<K, V> implements Serializer<Fun.Tuple2<K, V>> {
+    private final Serializer<Object> keySerializer;
+    private final KryoSerializer valueSerializer = new KryoSerializer();
+
+    private SpillSerializer(Serializer<Object> keySerializer) {
+      this.keySerializer = keySerializer;
+    }
+
+    @Override
+    public void serialize(DataOutput out, Fun.Tuple2<K, V> entry) throws IOException {
+      keySerializer.serialize(out, entry.a);
+      valueSerializer.serialize(out, entry.b);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Fun.Tuple2<K, V> deserialize(DataInput in, int available) throws IOException {
+      return Fun.t2((K) keySerializer.deserialize(in, -1), (V) valueSerializer.deserialize(in, -1));
+    }
+
+    @Override
+    public int fixedSize() {
+      return -1;
+    }
+  }
+
+  private static class CountingIterator<E> implements Iterator<E> {
+    private final Iterator<E> delegate;
+    private long count = 0;
+
+    private CountingIterator(Iterator<E> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public E next() {
+      E next = delegate.next();
+      count++;
+      return next;
+    }
+
+    @Override
+    public void remove() {
+      delegate.remove();
+    }
+  }
+
+  private static class ConcatIterator<V> implements Iterator<V> {
+    private final Iterator<Collection<V>> collections;
+    private Iterator<V> current = Collections.emptyIterator();
+
+    private ConcatIterator(Iterator<Collection<V>> collections) {
+      this.collections = collections;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext() && collections.hasNext()) {
+        current = collections.next().iterator();
+      }
+      return current.hasNext();
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    @Override
+    public void remove() {
+      current.remove();
+    }
+  }
 }
@@ -0,0 +1,107 @@
+package bench;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import javax.annotation.CheckForNull;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * The Kryo encoding starts with the numeric fields, so that {@link #value(ByteBuffer)} and {@link #date(ByteBuffer)}
+ * read them from the raw bytes of a stored measure without decoding the strings.
+ */
+public class Measure implements Serializable, KryoSerializable {
+  private static final int HAS_VALUE = 1;
+  private static final int HAS_DATE = 2;
+
+  private String key;
+  private String data;
+  private Long value;
+  private Date date;
+
+  /**
+   * For Kryo
+   */
+  private Measure() {
+  }
+
+  public Measure(String key, String data, Long value, Date date) {
+    this.key = key;
+    this.data = data;
+    this.value = value;
+    this.date = date;
+  }
+
+  public String getData() {
+    return data;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public void setData(String data) {
+    this.data = data;
+  }
+
+  public void setValue(Long value) {
+    this.value = value;
+  }
+
+  public Long getValue() {
+    return value;
+  }
+
+  public Date getDate() {
+    return date;
+  }
+
+  @Override
+  public void write(Kryo kryo, Output output) {
+    output.writeByte((value != null ? HAS_VALUE : 0) | (date != null ? HAS_DATE : 0));
+    if (value != null) {
+      output.writeLong(value);
+    }
+    if (date != null) {
+      output.writeLong(date.getTime());
+    }
+    output.writeString(key);
+    output.writeString(data);
+  }
+
+  @Override
+  public void read(Kryo kryo, Input input) {
+    int flags = input.readByte();
+    value = (flags & HAS_VALUE) != 0 ? input.readLong() : null;
+    date = (flags & HAS_DATE) != 0 ? new Date(input.readLong()) : null;
+    key = input.readString();
+    data = input.readString();
+  }
+
+  /**
+   * Reads the value field of a measure encoded by Kryo without references, from the position of the buffer.
+   */
+  @CheckForNull
+  public static Long value(ByteBuffer raw) {
+    int start = raw.position();
+    return (raw.get(start) & HAS_VALUE) != 0 ? raw.getLong(start + 1) : null;
+  }
+
+  /**
+   * Reads the date field of a measure encoded by Kryo without references, from the position of the buffer.
+   */
+  @CheckForNull
+  public static Date date(ByteBuffer raw) {
+    int start = raw.position();
+    int flags = raw.get(start);
+    if ((flags & HAS_DATE) == 0) {
+      return null;
+    }
+    return new Date(raw.getLong(start + 1 + ((flags & HAS_VALUE) != 0 ? 8 : 0)));
+  }
+}
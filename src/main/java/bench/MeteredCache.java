@@ -0,0 +1,299 @@
+package bench;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the latency of each operation of a cache in HDR histograms, and, when the cache is {@link Instrumented},
+ * the bytes it serializes and deserializes and its backend events. Everything is exposed through JMX under
+ * {@code bench:type=MeteredCache,name=<name>} until the cache is closed.
+ */
+public class MeteredCache<K, V extends Serializable> implements Cache<K, V>, CacheDecorator, RawValueCache<K>, CacheListener,
+  MeteredCacheMXBean {
+
+  private static final String[] OPERATIONS = {"get", "getRaw", "put", "putAll", "containsKey", "values", "range", "prefix"};
+  private static final double[] PERCENTILES = {50, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+  private final Cache<K, V> delegate;
+  private final ObjectName objectName;
+  private final Histogram getLatencies = newHistogram();
+  private final Histogram getRawLatencies = newHistogram();
+  private final Histogram putLatencies = newHistogram();
+  private final Histogram putAllLatencies = newHistogram();
+  private final Histogram containsKeyLatencies = newHistogram();
+  private final Histogram valuesLatencies = newHistogram();
+  private final Histogram rangeLatencies = newHistogram();
+  private final Histogram prefixLatencies = newHistogram();
+  private final AtomicLong bytesSerialized = new AtomicLong();
+  private final AtomicLong bytesDeserialized = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> events = new ConcurrentHashMap<>();
+
+  public MeteredCache(String name, Cache<K, V> delegate) {
+    this.delegate = delegate;
+    if (delegate instanceof Instrumented) {
+      ((Instrumented) delegate).setListener(this);
+    }
+    try {
+      objectName = new ObjectName("bench:type=MeteredCache,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    } catch (JMException e) {
+      throw new IllegalStateException("Fail to register cache " + name + " in JMX", e);
+    }
+  }
+
+  private static Histogram newHistogram() {
+    return new ConcurrentHistogram(3);
+  }
+
+  private static void record(Histogram histogram, long start) {
+    histogram.recordValue(Math.max(0, System.nanoTime() - start));
+  }
+
+  @Override
+  public Cache<K, V> backend() {
+    return delegate;
+  }
+
+  @Override
+  public void close() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      throw new IllegalStateException("Fail to unregister " + objectName + " from JMX", e);
+    }
+    delegate.close();
+  }
+
+  @Override
+  public MeteredCache<K, V> put(K key, V value) {
+    long start = System.nanoTime();
+    delegate.put(key, value);
+    record(putLatencies, start);
+    return this;
+  }
+
+  @Override
+  public MeteredCache<K, V> putAll(Map<K, V> entries) {
+    long start = System.nanoTime();
+    delegate.putAll(entries);
+    record(putAllLatencies, start);
+    return this;
+  }
+
+  /**
+   * The latency recorded for values is the time to get each value from the iterator
+   */
+  @Override
+  public Iterable<V> values() {
+    return metered(delegate.values(), valuesLatencies);
+  }
+
+  /**
+   * As for values, the latency recorded is the time to get each entry from the iterator
+   */
+  @Override
+  public Iterable<Map.Entry<K, V>> range(K fromKey, K toKey) {
+    return metered(delegate.range(fromKey, toKey), rangeLatencies);
+  }
+
+  /**
+   * As for values, the latency recorded is the time to get each entry from the iterator
+   */
+  @Override
+  public Iterable<Map.Entry<K, V>> prefix(String prefix) {
+    return metered(delegate.prefix(prefix), prefixLatencies);
+  }
+
+  private static <E> Iterable<E> metered(final Iterable<E> iterable, final Histogram latencies) {
+    return new Iterable<E>() {
+      @Override
+      public Iterator<E> iterator() {
+        return new MeteredIterator<>(iterable.iterator(), latencies);
+      }
+    };
+  }
+
+  @Override
+  public V get(K key) {
+    long start = System.nanoTime();
+    V value = delegate.get(key);
+    record(getLatencies, start);
+    return value;
+  }
+
+  /**
+   * @throws UnsupportedOperationException if the cache does not give access to raw values
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public ByteBuffer getRaw(K key) {
+    if (!(delegate instanceof RawValueCache)) {
+      throw new UnsupportedOperationException("Raw values are not supported by " + delegate.getClass().getSimpleName());
+    }
+    long start = System.nanoTime();
+    ByteBuffer value = ((RawValueCache<K>) delegate).getRaw(key);
+    record(getRawLatencies, start);
+    return value;
+  }
+
+  @Override
+  public boolean containsKey(K key) {
+    long start = System.nanoTime();
+    boolean contains = delegate.containsKey(key);
+    record(containsKeyLatencies, start);
+    return contains;
+  }
+
+  //
+  // CacheListener
+  //
+
+  @Override
+  public void serialized(int bytes) {
+    bytesSerialized.addAndGet(bytes);
+  }
+
+  @Override
+  public void deserialized(int bytes) {
+    bytesDeserialized.addAndGet(bytes);
+  }
+
+  @Override
+  public void event(String name) {
+    AtomicLong count = events.get(name);
+    if (count == null) {
+      AtomicLong newCount = new AtomicLong();
+      count = events.putIfAbsent(name, newCount);
+      if (count == null) {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  //
+  // MeteredCacheMXBean
+  //
+
+  private Histogram[] histograms() {
+    return new Histogram[] {getLatencies, getRawLatencies, putLatencies, putAllLatencies, containsKeyLatencies, valuesLatencies, rangeLatencies,
+      prefixLatencies};
+  }
+
+  @Override
+  public Map<String, Long> getCounts() {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    Histogram[] histograms = histograms();
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      counts.put(OPERATIONS[i], histograms[i].getTotalCount());
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getLatenciesMicros() {
+    Map<String, Long> latencies = new LinkedHashMap<>();
+    Histogram[] histograms = histograms();
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        long nanos = histograms[i].getValueAtPercentile(PERCENTILES[p]);
+        latencies.put(OPERATIONS[i] + "." + PERCENTILE_NAMES[p], TimeUnit.NANOSECONDS.toMicros(nanos));
+      }
+    }
+    return latencies;
+  }
+
+  @Override
+  public long getBytesSerialized() {
+    return bytesSerialized.get();
+  }
+
+  @Override
+  public long getBytesDeserialized() {
+    return bytesDeserialized.get();
+  }
+
+  @Override
+  public Map<String, Long> getEvents() {
+    Map<String, Long> result = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : events.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    for (Histogram histogram : histograms()) {
+      histogram.reset();
+    }
+    bytesSerialized.set(0);
+    bytesDeserialized.set(0);
+    events.clear();
+  }
+
+  /**
+   * Prints count and p50/p99/p999 latencies of each operation that was called, then bytes and events
+   */
+  public void printReport(PrintStream out) {
+    Histogram[] histograms = histograms();
+    for (int i = 0; i < OPERATIONS.length; i++) {
+      Histogram histogram = histograms[i];
+      if (histogram.getTotalCount() > 0) {
+        out.printf("  %-12s count=%d p50=%.1fus p99=%.1fus p999=%.1fus%n", OPERATIONS[i], histogram.getTotalCount(),
+          histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+          histogram.getValueAtPercentile(99.9) / 1000.0);
+      }
+    }
+    out.println("  bytes serialized=" + bytesSerialized + " deserialized=" + bytesDeserialized + " events=" + getEvents());
+  }
+
+  private static class MeteredIterator<V> implements Iterator<V> {
+    private final Iterator<V> delegate;
+    private final Histogram latencies;
+
+    private MeteredIterator(Iterator<V> delegate, Histogram latencies) {
+      this.delegate = delegate;
+      this.latencies = latencies;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public V next() {
+      long start = System.nanoTime();
+      V value = delegate.next();
+      record(latencies, start);
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      delegate.remove();
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link MeteredCache}. Latencies are in microseconds.
+ */
+public interface MeteredCacheMXBean {
+
+  /**
+   * Number of calls per operation: get, getRaw, put, putAll, containsKey, values (one per iterated value)
+   */
+  Map<String, Long> getCounts();
+
+  /**
+   * Latency percentiles per operation, keyed like "get.p99"
+   */
+  Map<String, Long> getLatenciesMicros();
+
+  long getBytesSerialized();
+
+  long getBytesDeserialized();
+
+  /**
+   * Backend-specific events, like Lucene reader reopens or Persistit exchange fetches
+   */
+  Map<String, Long> getEvents();
+
+  void reset();
+
+}
@@ -0,0 +1,686 @@
+package bench;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.apache.commons.io.FileUtils;
+import org.objenesis.strategy.SerializingInstantiatorStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only log of values in memory-mapped segment files, indexed by an off-heap open-addressing hash table.
+ * <p>
+ * A record is {@code [key hash][key length][value length][UTF-8 key][Kryo value]}, appended to the last segment.
+ * Each slot of the hash table (a direct buffer, linear probing) holds the key hash, the segment and the offset
+ * of the last record of the key: a lookup is a probe followed by a copy of the value out of the mapped file.
+ * </p>
+ * <p>
+ * An update appends a new record and leaves the previous one dead. A background thread copies the live records
+ * of the sealed segments that are mostly dead to the end of the log, then deletes them. Readers and writers
+ * wait while a segment is compacted, and compaction is skipped while an iteration over the values is not
+ * complete. An iteration which is abandoned before its end blocks compaction until it is garbage collected.
+ * </p>
+ * <p>
+ * This cache is thread-safe: lookups share a lock, appends and compaction take it exclusively. Values are
+ * serialized and deserialized outside of the lock.
+ * </p>
+ * <p>
+ * Records are never modified once written and mapped files stay mapped when compaction deletes them, so raw
+ * values are views of the mapped files that remain valid until the cache is closed.
+ * </p>
+ * <p>
+ * The hash index has no key order: range and prefix scans copy and sort the matching keys on each iteration.
+ * </p>
+ * <p>
+ * Kryo does not track references in the records, which keeps raw values free of reference markers. A value whose
+ * object graph has a cycle cannot be written, and an object it refers to more than once is duplicated on read.
+ * </p>
+ */
+public class MmapLogCache<V extends Serializable> implements Cache<String, V>, RawValueCache<String>, Instrumented {
+
+  static final String COMPACTION_EVENT = "segmentCompaction";
+  private static final Logger LOG = LoggerFactory.getLogger(MmapLogCache.class);
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final File DEFAULT_DIR = new File("target/mmaplog");
+  private static final long COMPACTION_INTERVAL_MS = 1000;
+  private static final double COMPACTION_THRESHOLD = 0.5;
+  private static final int HEADER_SIZE = 12;
+  private static final int SLOT_SIZE = 12;
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  private static final double MAX_LOAD = 0.7;
+
+  private final Class<V> valueClass;
+  private final File dir;
+  private final int segmentSize;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final List<Segment> segments = new ArrayList<>();
+  // weak, so that an iteration which is abandoned stops blocking compaction once it is garbage collected
+  private final Set<LogIterator> openIterators = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<LogIterator, Boolean>()));
+  private Segment active;
+  private ByteBuffer table;
+  private int mask;
+  private int size;
+  private ScheduledExecutorService compactor;
+  private volatile CacheListener listener = CacheListener.NONE;
+
+  private final ThreadLocal<Codec> codecs = new ThreadLocal<Codec>() {
+    @Override
+    protected Codec initialValue() {
+      return new Codec();
+    }
+  };
+
+  public MmapLogCache(Class<V> valueClass) {
+    this(valueClass, DEFAULT_DIR);
+  }
+
+  public MmapLogCache(Class<V> valueClass, int segmentSize) {
+    this(valueClass, DEFAULT_DIR, segmentSize);
+  }
+
+  public MmapLogCache(Class<V> valueClass, File dir) {
+    this(valueClass, dir, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * @param dir directory of the segment files, deleted first and when the cache is closed, so it must not be used
+   *            by another cache
+   * @param segmentSize size of the segment files, a record larger than that gets a segment of its own
+   */
+  public MmapLogCache(Class<V> valueClass, File dir, int segmentSize) {
+    this.valueClass = valueClass;
+    this.segmentSize = segmentSize;
+    this.dir = dir;
+    FileUtils.deleteQuietly(dir);
+    dir.mkdirs();
+    table = ByteBuffer.allocateDirect(INITIAL_CAPACITY * SLOT_SIZE);
+    mask = INITIAL_CAPACITY - 1;
+    startCompactor();
+  }
+
+  private void startCompactor() {
+    compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "mmap-log-compactor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    compactor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        } catch (RuntimeException e) {
+          // an exception would cancel the next runs
+          LOG.error("Fail to compact segments in " + dir, e);
+        }
+      }
+    }, COMPACTION_INTERVAL_MS, COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * The mapped files are deleted, their memory is released once the buffers are garbage collected
+   */
+  @Override
+  public void close() {
+    try {
+      compactor.shutdownNow();
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      throw new IllegalStateException("Fail to stop compaction", e);
+    }
+    lock.writeLock().lock();
+    try {
+      segments.clear();
+      active = null;
+      table = null;
+      FileUtils.deleteQuietly(dir);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public MmapLogCache<V> put(String key, V value) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    Output output = serialize(value);
+    lock.writeLock().lock();
+    try {
+      append(hash(key), keyBytes, output.getBuffer(), output.position());
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return this;
+  }
+
+  /**
+   * All the entries are appended under a single acquisition of the lock
+   */
+  @Override
+  public MmapLogCache<V> putAll(Map<String, V> entries) {
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<String, V> entry : entries.entrySet()) {
+        Output output = serialize(entry.getValue());
+        append(hash(entry.getKey()), entry.getKey().getBytes(UTF_8), output.getBuffer(), output.position());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return this;
+  }
+
+  @Override
+  public V get(String key) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    Codec codec = codecs.get();
+    int length;
+    lock.readLock().lock();
+    try {
+      int slot = slotOf(hash(key), keyBytes, keyBytes.length);
+      if (table.getInt(slot) == 0) {
+        return null;
+      }
+      length = readValue(segments.get(table.getInt(slot + 4)), table.getInt(slot + 8), codec);
+    } finally {
+      lock.readLock().unlock();
+    }
+    return codec.deserialize(length);
+  }
+
+  @Override
+  public ByteBuffer getRaw(String key) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    lock.readLock().lock();
+    try {
+      int slot = slotOf(hash(key), keyBytes, keyBytes.length);
+      if (table.getInt(slot) == 0) {
+        return null;
+      }
+      ByteBuffer record = segments.get(table.getInt(slot + 4)).buffer.asReadOnlyBuffer();
+      int offset = table.getInt(slot + 8);
+      int valueOffset = offset + HEADER_SIZE + record.getInt(offset + 4);
+      record.limit(valueOffset + record.getInt(offset + 8)).position(valueOffset);
+      return record.slice();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    byte[] keyBytes = key.getBytes(UTF_8);
+    lock.readLock().lock();
+    try {
+      return table.getInt(slotOf(hash(key), keyBytes, keyBytes.length)) != 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Values are read in log order. Updates done during the iteration may or may not be seen. Segments are not
+   * compacted until the iteration is complete, or until its iterator is garbage collected.
+   */
+  @Override
+  public Iterable<V> values() {
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new LogIterator();
+      }
+    };
+  }
+
+  /**
+   * The index has no order, so unlike the other backends the keys are not read while iterating: each iteration
+   * scans the whole index, copies all the keys of the range into a list and sorts it before returning the first
+   * entry. Only the values are read while iterating. Keys written during the iteration are not seen.
+   */
+  @Override
+  public Iterable<Map.Entry<String, V>> range(final String fromKey, final String toKey) {
+    return new Iterable<Map.Entry<String, V>>() {
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        return new KeyLookupIterator(sortedKeys(fromKey, toKey, null).iterator());
+      }
+    };
+  }
+
+  /**
+   * As in {@link #range(String, String)}, each iteration scans the whole index, copies all the keys with the prefix
+   * into a list and sorts it before returning the first entry. Only the values are read while iterating.
+   */
+  @Override
+  public Iterable<Map.Entry<String, V>> prefix(final String prefix) {
+    return new Iterable<Map.Entry<String, V>>() {
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        return new KeyLookupIterator(sortedKeys(null, null, prefix).iterator());
+      }
+    };
+  }
+
+  /**
+   * Keys of the index between {@code fromKey} included and {@code toKey} excluded, or starting with {@code prefix}
+   */
+  private List<String> sortedKeys(@Nullable String fromKey, @Nullable String toKey, @Nullable String prefix) {
+    List<String> keys = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      for (int slot = 0; table != null && slot < table.capacity(); slot += SLOT_SIZE) {
+        if (table.getInt(slot) != 0) {
+          String key = readKey(segments.get(table.getInt(slot + 4)), table.getInt(slot + 8));
+          boolean matches = prefix != null ? key.startsWith(prefix) : (key.compareTo(fromKey) >= 0 && key.compareTo(toKey) < 0);
+          if (matches) {
+            keys.add(key);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    Collections.sort(keys);
+    return keys;
+  }
+
+  private Output serialize(V value) {
+    Codec codec = codecs.get();
+    codec.output.clear();
+    codec.kryo.writeObject(codec.output, value);
+    listener.serialized(codec.output.position());
+    return codec.output;
+  }
+
+  private static int hash(String key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    h ^= h >>> 16;
+    // 0 marks empty slots
+    return h == 0 ? 1 : h;
+  }
+
+  //
+  // LOG, under the write lock
+  //
+
+  private void append(int hash, byte[] key, byte[] value, int valueLength) {
+    int recordSize = HEADER_SIZE + key.length + valueLength;
+    Segment segment = segmentFor(recordSize);
+    int offset = segment.buffer.position();
+    segment.buffer.putInt(hash).putInt(key.length).putInt(valueLength).put(key).put(value, 0, valueLength);
+    index(hash, key, segment, offset);
+  }
+
+  /**
+   * Copies a live record of a compacted segment to the end of the log
+   */
+  private void move(Segment from, int offset, int slot) {
+    int recordSize = recordSize(from.buffer, offset);
+    Segment to = segmentFor(recordSize);
+    ByteBuffer record = from.buffer.duplicate();
+    record.limit(offset + recordSize).position(offset);
+    table.putInt(slot + 4, to.id);
+    table.putInt(slot + 8, to.buffer.position());
+    to.buffer.put(record);
+  }
+
+  private Segment segmentFor(int recordSize) {
+    if (active == null || active.buffer.remaining() < recordSize) {
+      try {
+        active = new Segment(segments.size(), new File(dir, "segment-" + segments.size() + ".log"), Math.max(segmentSize, recordSize));
+      } catch (IOException e) {
+        throw new IllegalStateException("Fail to create segment in " + dir, e);
+      }
+      segments.add(active);
+    }
+    return active;
+  }
+
+  private void index(int hash, byte[] key, Segment segment, int offset) {
+    int slot = slotOf(hash, key, key.length);
+    if (table.getInt(slot) == 0) {
+      table.putInt(slot, hash);
+      size++;
+    } else {
+      Segment previous = segments.get(table.getInt(slot + 4));
+      previous.deadBytes += recordSize(previous.buffer, table.getInt(slot + 8));
+    }
+    table.putInt(slot + 4, segment.id);
+    table.putInt(slot + 8, offset);
+    if (size > MAX_LOAD * (mask + 1)) {
+      resize();
+    }
+  }
+
+  private void resize() {
+    ByteBuffer previous = table;
+    int capacity = (mask + 1) * 2;
+    table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    mask = capacity - 1;
+    for (int slot = 0; slot < previous.capacity(); slot += SLOT_SIZE) {
+      int hash = previous.getInt(slot);
+      if (hash != 0) {
+        int index = hash & mask;
+        while (table.getInt(index * SLOT_SIZE) != 0) {
+          index = (index + 1) & mask;
+        }
+        table.putInt(index * SLOT_SIZE, hash);
+        table.putInt(index * SLOT_SIZE + 4, previous.getInt(slot + 4));
+        table.putInt(index * SLOT_SIZE + 8, previous.getInt(slot + 8));
+      }
+    }
+  }
+
+  //
+  // LOOKUPS, under the read lock at least
+  //
+
+  /**
+   * @return position in the table of the slot of the key, or of the empty slot where it would be inserted
+   */
+  private int slotOf(int hash, byte[] key, int keyLength) {
+    int index = hash & mask;
+    while (true) {
+      int slot = index * SLOT_SIZE;
+      int slotHash = table.getInt(slot);
+      if (slotHash == 0 || (slotHash == hash && keyEquals(segments.get(table.getInt(slot + 4)), table.getInt(slot + 8), key, keyLength))) {
+        return slot;
+      }
+      index = (index + 1) & mask;
+    }
+  }
+
+  private static boolean keyEquals(Segment segment, int offset, byte[] key, int keyLength) {
+    ByteBuffer buffer = segment.buffer;
+    if (buffer.getInt(offset + 4) != keyLength) {
+      return false;
+    }
+    int start = offset + HEADER_SIZE;
+    for (int i = 0; i < keyLength; i++) {
+      if (buffer.get(start + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the slot of the key of the record if the record is the last one of its key, -1 if it is dead
+   */
+  private int liveSlot(Segment segment, int offset, Codec codec) {
+    ByteBuffer buffer = segment.buffer;
+    int hash = buffer.getInt(offset);
+    int keyLength = buffer.getInt(offset + 4);
+    byte[] key = codec.keyBuffer(keyLength);
+    ByteBuffer record = buffer.duplicate();
+    record.position(offset + HEADER_SIZE);
+    record.get(key, 0, keyLength);
+    int slot = slotOf(hash, key, keyLength);
+    boolean live = table.getInt(slot + 4) == segment.id && table.getInt(slot + 8) == offset;
+    return live ? slot : -1;
+  }
+
+  /**
+   * Copies the value of the record into the read buffer of the codec
+   *
+   * @return the length of the value
+   */
+  private int readValue(Segment segment, int offset, Codec codec) {
+    ByteBuffer record = segment.buffer.duplicate();
+    int keyLength = record.getInt(offset + 4);
+    int valueLength = record.getInt(offset + 8);
+    record.position(offset + HEADER_SIZE + keyLength);
+    record.get(codec.readBuffer(valueLength), 0, valueLength);
+    return valueLength;
+  }
+
+  private static String readKey(Segment segment, int offset) {
+    ByteBuffer record = segment.buffer.duplicate();
+    byte[] key = new byte[record.getInt(offset + 4)];
+    record.position(offset + HEADER_SIZE);
+    record.get(key);
+    return new String(key, UTF_8);
+  }
+
+  private static int recordSize(ByteBuffer buffer, int offset) {
+    return HEADER_SIZE + buffer.getInt(offset + 4) + buffer.getInt(offset + 8);
+  }
+
+  //
+  // COMPACTION
+  //
+
+  private void compact() {
+    if (!openIterators.isEmpty()) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      // iterators are opened under the read lock, none can start now
+      if (!openIterators.isEmpty() || table == null) {
+        return;
+      }
+      Codec codec = codecs.get();
+      for (int i = 0; i < segments.size(); i++) {
+        Segment segment = segments.get(i);
+        if (segment != null && segment != active && segment.deadBytes >= COMPACTION_THRESHOLD * segment.buffer.position()) {
+          compact(segment, codec);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void compact(Segment segment, Codec codec) {
+    int end = segment.buffer.position();
+    int offset = 0;
+    while (offset < end) {
+      int slot = liveSlot(segment, offset, codec);
+      int recordSize = recordSize(segment.buffer, offset);
+      if (slot >= 0) {
+        move(segment, offset, slot);
+      }
+      offset += recordSize;
+    }
+    segments.set(segment.id, null);
+    FileUtils.deleteQuietly(segment.file);
+    listener.event(COMPACTION_EVENT);
+  }
+
+  private static final class Segment {
+    private final int id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private long deadBytes;
+
+    private Segment(int id, File file, int size) throws IOException {
+      this.id = id;
+      this.file = file;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+        // the mapping stays valid once the channel is closed
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+  }
+
+  /**
+   * Walks the records of each segment in order, skipping the dead ones. The read lock is only held to find and
+   * copy the next value.
+   */
+  private final class LogIterator implements Iterator<V> {
+
+    private final Codec codec = new Codec();
+    private int segmentId;
+    private int offset;
+    private int valueLength = -1;
+    private boolean open = true;
+
+    private LogIterator() {
+      lock.readLock().lock();
+      try {
+        openIterators.add(this);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (valueLength < 0 && open) {
+        advance();
+      }
+      return valueLength >= 0;
+    }
+
+    private void advance() {
+      lock.readLock().lock();
+      try {
+        while (table != null && segmentId < segments.size()) {
+          Segment segment = segments.get(segmentId);
+          if (segment != null && offset < segment.buffer.position()) {
+            int recordOffset = offset;
+            offset += recordSize(segment.buffer, recordOffset);
+            if (liveSlot(segment, recordOffset, codec) >= 0) {
+              valueLength = readValue(segment, recordOffset, codec);
+              return;
+            }
+          } else if (segment != active) {
+            segmentId++;
+            offset = 0;
+          } else {
+            break;
+          }
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+      open = false;
+      openIterators.remove(this);
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      V value = codec.deserialize(valueLength);
+      valueLength = -1;
+      return value;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  /**
+   * Reads the value of each key with {@link #get(String)}, skipping the keys which are gone
+   */
+  private final class KeyLookupIterator implements Iterator<Map.Entry<String, V>> {
+
+    private final Iterator<String> keys;
+    private Map.Entry<String, V> next;
+
+    private KeyLookupIterator(Iterator<String> keys) {
+      this.keys = keys;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && keys.hasNext()) {
+        String key = keys.next();
+        V value = get(key);
+        if (value != null) {
+          next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, V> entry = next;
+      next = null;
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  private final class Codec {
+    private final Kryo kryo;
+    private final Output output = new Output(4096, -1);
+    private final Input input = new Input();
+    private byte[] readBuffer = new byte[4096];
+    private byte[] keyBuffer = new byte[64];
+
+    private Codec() {
+      kryo = new Kryo();
+      kryo.setInstantiatorStrategy(new SerializingInstantiatorStrategy());
+      kryo.setReferences(false);
+    }
+
+    private byte[] readBuffer(int length) {
+      if (readBuffer.length < length) {
+        readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+      }
+      return readBuffer;
+    }
+
+    private byte[] keyBuffer(int length) {
+      if (keyBuffer.length < length) {
+        keyBuffer = new byte[Math.max(length, keyBuffer.length * 2)];
+      }
+      return keyBuffer;
+    }
+
+    private V deserialize(int length) {
+      listener.deserialized(length);
+      input.setBuffer(readBuffer, 0, length);
+      return kryo.readObject(input, valueClass);
+    }
+  }
+}
@@ -22,66 +22,248 @@ package bench;
 
 import com.persistit.Exchange;
 import com.persistit.Key;
+import com.persistit.KeyState;
+import com.persistit.Management;
 import com.persistit.Persistit;
+import com.persistit.Value;
 import com.persistit.Volume;
+import com.persistit.encoding.ValueCoder;
 import com.persistit.exception.PersistitException;
 import com.persistit.logging.Slf4jAdapter;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import java.io.File;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.Properties;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>
- * This cache is not thread-safe, due to direct usage of {@link com.persistit.Exchange}
+ * {@link com.persistit.Exchange} is not thread-safe, so each thread works with its own exchange, created the first
+ * time the thread touches the cache. Closing the cache drops the exchanges of all the threads, so that long-lived
+ * threads, such as the ones of an {@link AsyncCache} or a {@link ShardedCache}, do not keep them. They are not
+ * taken from the Persistit pool, as only the thread which borrowed an exchange can give it back.
+ * </p>
+ * <p>
+ * By default the data lives in a temporary volume, which does not support concurrent writers: long records
+ * stored from several threads get corrupted. Create the cache in concurrent mode to share it between threads,
+ * the data then goes to a regular (journaled) volume.
+ * </p>
+ * <p>
+ * A persistent cache also uses the regular volume, which it keeps when closed. The next persistent cache on the same
+ * directory reopens it instead of starting empty, unless the header written at the close does not match.
+ * </p>
+ * <p>
+ * The {@code long} and {@code byte[]} overloads append the key to the Persistit {@link Key} directly. They
+ * encode keys exactly as {@code Long} and {@code byte[]} objects are encoded, so both kinds of access can be mixed.
+ * </p>
+ * <p>
+ * Raw access is only supported for values of the classes encoded with {@link KryoValueCoder}.
+ * </p>
+ * <p>
+ * Bulk loads encode values on all the worker threads, each one with its own exchange. Out of concurrent mode, the
+ * stores themselves are done one at a time.
+ * </p>
+ * <p>
+ * A cache created by a {@link CacheFactory} is a tree of the Persistit instance of the factory, which is not
+ * closed with the cache. Value coders are registered on the instance, so for all its caches.
  * </p>
  */
-public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
+public class PersisitItCache<K, V extends Serializable> implements Cache<K, V>, LongKeyCache<V>, BytesKeyCache<V>, RawValueCache<K>,
+  BulkLoadCache<K, V>, SortedBulkLoader<K, V>, Instrumented {
+
+  static final String FETCH_EVENT = "exchangeFetch";
 
   private File tempDir;
   private Persistit persistit;
   private Volume volume;
   private String name;
-
-  private final Exchange exchange;
+  private int pageSize;
+  private boolean concurrent;
+  private boolean ownsPersistit;
+  private PersistitCacheConfig config;
+  private boolean reopened;
+  private volatile CacheListener listener = CacheListener.NONE;
+  private final Map<Class<?>, KryoValueCoder> kryoCoders = new HashMap<>();
+
+  private final Set<ExchangeHolder> exchangeHolders = Collections.newSetFromMap(new ConcurrentHashMap<ExchangeHolder, Boolean>());
+  private final ThreadLocal<ExchangeHolder> exchanges = new ThreadLocal<ExchangeHolder>() {
+    @Override
+    protected ExchangeHolder initialValue() {
+      return new ExchangeHolder();
+    }
+  };
 
   PersisitItCache() {
+    this(false);
+  }
+
+  /**
+   * @param concurrent true if the cache is used by several threads
+   */
+  PersisitItCache(boolean concurrent) {
+    this(PersistitCacheConfig.builder().setConcurrent(concurrent).build());
+  }
+
+  PersisitItCache(PersistitCacheConfig config) {
     try {
-      tempDir = new File("target/caches");
-      FileUtils.deleteQuietly(tempDir);
-      tempDir.mkdirs();
-      persistit = new Persistit();
-      persistit.setPersistitLogger(new Slf4jAdapter(LoggerFactory.getLogger("PERSISTIT")));
-      Properties props = new Properties();
-      props.setProperty("datapath", tempDir.getAbsolutePath());
-      props.setProperty("logpath", "${datapath}/log");
-      props.setProperty("logfile", "${logpath}/persistit_${timestamp}.log");
-      props.setProperty("buffer.count.8192", "10");
-      props.setProperty("journalpath", "${datapath}/journal");
-      props.setProperty("tmpvoldir", "${datapath}");
-      props.setProperty("volume.1", "${datapath}/persistit,create,pageSize:8192,initialPages:10,extensionPages:100,maximumPages:25000");
-      persistit.setProperties(props);
-      persistit.initialize();
-      volume = persistit.createTemporaryVolume();
+      this.config = config;
+      tempDir = config.path();
+      pageSize = config.pageSize();
+      concurrent = config.concurrent() || config.persistent();
+      reopened = prepareDirectory(config);
+      persistit = startPersistit(config);
+      volume = openVolume(persistit, concurrent);
+      ownsPersistit = true;
+      addKryoCoders(config);
 
       this.name = "sample";
-      this.exchange = persistit.getExchange(volume, name, true);
+      // create the tree eagerly
+      exchange();
 
     } catch (Exception e) {
       throw new IllegalStateException("Fail to start caches", e);
     }
   }
 
+  /**
+   * Empties the directory of the config, unless it has persistent data to reopen
+   *
+   * @return true if the persistent data is reopened
+   */
+  static boolean prepareDirectory(PersistitCacheConfig config) {
+    boolean reopen = config.persistent() && config.header().checkAndClear();
+    if (!reopen) {
+      FileUtils.deleteQuietly(config.path());
+    }
+    config.path().mkdirs();
+    return reopen;
+  }
+
+  static Persistit startPersistit(PersistitCacheConfig config) throws PersistitException {
+    Persistit persistit = new Persistit();
+    persistit.setPersistitLogger(new Slf4jAdapter(LoggerFactory.getLogger("PERSISTIT")));
+    persistit.setProperties(config.toProperties());
+    persistit.initialize();
+    for (Map.Entry<Class<?>, ValueCoder> entry : config.valueCoders().entrySet()) {
+      persistit.getCoderManager().registerValueCoder(entry.getKey(), entry.getValue());
+    }
+    return persistit;
+  }
+
+  /**
+   * Pages of persistent data are written to the volume before the header is written
+   */
+  static void stopPersistit(Persistit persistit, PersistitCacheConfig config) throws PersistitException {
+    persistit.close(config.persistent());
+    if (config.persistent()) {
+      config.header().write();
+    }
+  }
+
+  /**
+   * @param concurrent true for the regular volume, which supports concurrent writers, false for a temporary volume
+   */
+  static Volume openVolume(Persistit persistit, boolean concurrent) throws PersistitException {
+    return concurrent ? persistit.getVolume("persistit") : persistit.createTemporaryVolume();
+  }
+
+  /**
+   * Cache stored in the tree of the given name, in a volume of a Persistit instance owned by a {@link CacheFactory}
+   */
+  PersisitItCache(Persistit persistit, Volume volume, String name, PersistitCacheConfig config) {
+    this.persistit = persistit;
+    this.volume = volume;
+    this.name = name;
+    this.config = config;
+    this.pageSize = config.pageSize();
+    this.concurrent = config.concurrent() || config.persistent();
+    addKryoCoders(config);
+    try {
+      // create the tree eagerly
+      exchange();
+    } catch (Exception e) {
+      throw new IllegalStateException("Fail to start cache " + name, e);
+    }
+  }
+
+  /**
+   * @return true if the data of a previous persistent cache was reopened rather than rebuilt
+   */
+  public boolean wasReopened() {
+    return reopened;
+  }
+
+  /**
+   * @return true if the data is in a regular volume, which supports concurrent writers
+   */
+  public boolean isConcurrent() {
+    return concurrent;
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    this.listener = listener;
+  }
+
+  private void addKryoCoders(PersistitCacheConfig config) {
+    for (Map.Entry<Class<?>, ValueCoder> entry : config.valueCoders().entrySet()) {
+      if (entry.getValue() instanceof KryoValueCoder) {
+        kryoCoders.put(entry.getKey(), (KryoValueCoder) entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Encodes values of the given class with the given coder instead of the Persistit default serialization.
+   * Must be called before any value of this class is stored. The coders of a persistent cache are set in its
+   * config instead, so that they are part of the header of the data, see
+   * {@link PersistitCacheConfig.Builder#setValueCoder(Class, ValueCoder)}.
+   */
+  public PersisitItCache<K, V> registerValueCoder(Class<?> valueClass, ValueCoder coder) {
+    if (config.persistent()) {
+      throw new IllegalStateException("Value coders of a persistent cache must be set in its config: " + name);
+    }
+    persistit.getCoderManager().registerValueCoder(valueClass, coder);
+    if (coder instanceof KryoValueCoder) {
+      kryoCoders.put(valueClass, (KryoValueCoder) coder);
+    }
+    return this;
+  }
+
+  /**
+   * The Persistit instance of a {@link CacheFactory} stays open, the tree of the cache is kept until the factory is
+   * closed
+   */
   @Override
   public void close() {
+    for (ExchangeHolder holder : exchangeHolders) {
+      holder.exchange = null;
+    }
+    exchangeHolders.clear();
+    exchanges.remove();
+    if (!ownsPersistit) {
+      persistit = null;
+      volume = null;
+      return;
+    }
     if (persistit != null) {
       try {
-        persistit.close(false);
+        stopPersistit(persistit, config);
         persistit = null;
         volume = null;
       } catch (PersistitException e) {
@@ -93,28 +275,35 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
 
   @Override
   public PersisitItCache<K, V> put(K key, V value) {
-    resetKey(key);
-    return doPut(value);
+    return doPut(resetKey(key), value);
+  }
+
+  @Override
+  public PersisitItCache<K, V> put(long key, V value) {
+    return doPut(resetKey(key), value);
+  }
+
+  @Override
+  public PersisitItCache<K, V> put(byte[] key, V value) {
+    return doPut(resetKey(key), value);
   }
 
   public PersisitItCache put(Object firstKey, Object secondKey, V value) {
-    resetKey(firstKey, secondKey);
-    return doPut(value);
+    return doPut(resetKey(firstKey, secondKey), value);
   }
 
   public PersisitItCache put(Object firstKey, Object secondKey, Object thirdKey, V value) {
-    resetKey(firstKey, secondKey, thirdKey);
-    return doPut(value);
+    return doPut(resetKey(firstKey, secondKey, thirdKey), value);
   }
 
   public PersisitItCache put(Object[] key, V value) {
-    resetKey(key);
-    return doPut(value);
+    return doPut(resetKey(key), value);
   }
 
-  private PersisitItCache<K, V> doPut(V value) {
+  private PersisitItCache<K, V> doPut(Exchange exchange, V value) {
     try {
       exchange.getValue().put(value);
+      listener.serialized(exchange.getValue().getEncodedSize());
       exchange.store();
       return this;
     } catch (Exception e) {
@@ -122,45 +311,134 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
     }
   }
 
+  /**
+   * Stores the entries in key order, so that consecutive stores mostly hit the pages already in the buffer pool
+   */
+  @Override
+  public PersisitItCache<K, V> putAll(Map<K, V> entries) {
+    Exchange exchange = exchange();
+    List<KeyedValue<V>> sorted = new ArrayList<KeyedValue<V>>(entries.size());
+    for (Map.Entry<K, V> entry : entries.entrySet()) {
+      resetKey(entry.getKey());
+      sorted.add(new KeyedValue<V>(new KeyState(exchange.getKey()), entry.getValue()));
+    }
+    Collections.sort(sorted);
+    for (KeyedValue<V> keyedValue : sorted) {
+      keyedValue.key.copyTo(exchange.getKey());
+      doPut(exchange, keyedValue.value);
+    }
+    return this;
+  }
+
+  @Override
+  public long bulkLoad(Iterator<Map.Entry<K, V>> entries, int threads) {
+    final Object storeLock = new Object();
+    return new BulkLoader<K, V>(threads) {
+      @Override
+      Worker<K, V> newWorker() throws PersistitException {
+        final Exchange exchange = persistit.getExchange(volume, name, true);
+        return new Worker<K, V>() {
+          @Override
+          void load(K key, V value) throws PersistitException {
+            exchange.clear().append(key);
+            exchange.getValue().put(value);
+            listener.serialized(exchange.getValue().getEncodedSize());
+            if (concurrent) {
+              exchange.store();
+            } else {
+              synchronized (storeLock) {
+                exchange.store();
+              }
+            }
+          }
+
+          @Override
+          void finish() {
+            persistit.releaseExchange(exchange);
+          }
+        };
+      }
+    }.load(entries);
+  }
+
+  /**
+   * All the entries go through the exchange of the calling thread. An exchange first looks for a key in the leaf
+   * page of its previous access, so appending keys in order mostly stays on the last page without descending the
+   * tree, and the default pack split policy leaves full pages behind.
+   */
+  @Override
+  public long loadSorted(Iterator<Map.Entry<K, V>> sortedEntries) {
+    Exchange exchange = exchange();
+    try {
+      if (exchange.clear().append(Key.BEFORE).next()) {
+        throw new IllegalStateException("Sorted load needs an empty cache");
+      }
+    } catch (PersistitException e) {
+      throw new IllegalStateException("Fail to read cache " + name, e);
+    }
+    long count = 0;
+    while (sortedEntries.hasNext()) {
+      Map.Entry<K, V> entry = sortedEntries.next();
+      exchange.clear().append(entry.getKey());
+      doPut(exchange, entry.getValue());
+      count++;
+    }
+    return count;
+  }
+
   /**
    * Returns the value object associated with keys, or null if not found.
    */
   @Override
   public V get(Object key) {
-    resetKey(key);
-    return doGet();
+    return doGet(resetKey(key));
+  }
+
+  /**
+   * Returns the value object associated with keys, or null if not found.
+   */
+  @Override
+  public V get(long key) {
+    return doGet(resetKey(key));
+  }
+
+  /**
+   * Returns the value object associated with keys, or null if not found.
+   */
+  @Override
+  public V get(byte[] key) {
+    return doGet(resetKey(key));
   }
 
   /**
    * Returns the value object associated with keys, or null if not found.
    */
   public V get(Object firstKey, Object secondKey) {
-    resetKey(firstKey, secondKey);
-    return doGet();
+    return doGet(resetKey(firstKey, secondKey));
   }
 
   /**
    * Returns the value object associated with keys, or null if not found.
    */
   public V get(Object firstKey, Object secondKey, Object thirdKey) {
-    resetKey(firstKey, secondKey, thirdKey);
-    return doGet();
+    return doGet(resetKey(firstKey, secondKey, thirdKey));
   }
 
   /**
    * Returns the value object associated with keys, or null if not found.
    */
   public V get(Object[] key) {
-    resetKey(key);
-    return doGet();
+    return doGet(resetKey(key));
   }
 
-  private V doGet() {
+  private V doGet(Exchange exchange) {
     try {
       exchange.fetch();
+      listener.event(FETCH_EVENT);
       if (!exchange.getValue().isDefined()) {
         return null;
       }
+      listener.deserialized(exchange.getValue().getEncodedSize());
       return (V) exchange.getValue().get();
     } catch (Exception e) {
       // TODO add parameters to message
@@ -168,30 +446,60 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
     }
   }
 
+  /**
+   * The view is on the value buffer of the exchange of the current thread.
+   */
+  @Override
+  public ByteBuffer getRaw(K key) {
+    Exchange exchange = resetKey(key);
+    try {
+      exchange.fetch();
+    } catch (PersistitException e) {
+      throw new IllegalStateException("Fail to get element from cache " + name, e);
+    }
+    listener.event(FETCH_EVENT);
+    Value value = exchange.getValue();
+    if (!value.isDefined()) {
+      return null;
+    }
+    KryoValueCoder coder = kryoCoders.get(value.getType());
+    if (coder == null) {
+      throw new UnsupportedOperationException("Raw access needs values encoded by " + KryoValueCoder.class.getSimpleName() + ": " + value.getType());
+    }
+    return coder.payload(value);
+  }
+
   @Override
   public boolean containsKey(K key) {
-    resetKey(key);
-    return doContainsKey();
+    return doContainsKey(resetKey(key));
+  }
+
+  @Override
+  public boolean containsKey(long key) {
+    return doContainsKey(resetKey(key));
+  }
+
+  @Override
+  public boolean containsKey(byte[] key) {
+    return doContainsKey(resetKey(key));
   }
 
   public boolean containsKey(Object firstKey, Object secondKey) {
-    resetKey(firstKey, secondKey);
-    return doContainsKey();
+    return doContainsKey(resetKey(firstKey, secondKey));
   }
 
   public boolean containsKey(Object firstKey, Object secondKey, Object thirdKey) {
-    resetKey(firstKey, secondKey, thirdKey);
-    return doContainsKey();
+    return doContainsKey(resetKey(firstKey, secondKey, thirdKey));
   }
 
   public boolean containsKey(Object[] key) {
-    resetKey(key);
-    return doContainsKey();
+    return doContainsKey(resetKey(key));
   }
 
-  private boolean doContainsKey() {
+  private boolean doContainsKey(Exchange exchange) {
     try {
       exchange.fetch();
+      listener.event(FETCH_EVENT);
       return exchange.isValueDefined();
     } catch (Exception e) {
       // TODO add parameters to message
@@ -200,26 +508,22 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
   }
 
   public boolean remove(Object key) {
-    resetKey(key);
-    return doRemove();
+    return doRemove(resetKey(key));
   }
 
   public boolean remove(Object firstKey, Object secondKey) {
-    resetKey(firstKey, secondKey);
-    return doRemove();
+    return doRemove(resetKey(firstKey, secondKey));
   }
 
   public boolean remove(Object firstKey, Object secondKey, Object thirdKey) {
-    resetKey(firstKey, secondKey, thirdKey);
-    return doRemove();
+    return doRemove(resetKey(firstKey, secondKey, thirdKey));
   }
 
   public boolean remove(Object[] key) {
-    resetKey(key);
-    return doRemove();
+    return doRemove(resetKey(key));
   }
 
-  private boolean doRemove() {
+  private boolean doRemove(Exchange exchange) {
     try {
       return exchange.remove();
     } catch (Exception e) {
@@ -234,26 +538,22 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
    * @param group The group name.
    */
   public PersisitItCache clear(Object key) {
-    resetKey(key);
-    return doClear();
+    return doClear(resetKey(key));
   }
 
   public PersisitItCache clear(Object firstKey, Object secondKey) {
-    resetKey(firstKey, secondKey);
-    return doClear();
+    return doClear(resetKey(firstKey, secondKey));
   }
 
   public PersisitItCache clear(Object firstKey, Object secondKey, Object thirdKey) {
-    resetKey(firstKey, secondKey, thirdKey);
-    return doClear();
+    return doClear(resetKey(firstKey, secondKey, thirdKey));
   }
 
   public PersisitItCache clear(Object[] key) {
-    resetKey(key);
-    return doClear();
+    return doClear(resetKey(key));
   }
 
-  private PersisitItCache doClear() {
+  private PersisitItCache doClear(Exchange exchange) {
     try {
       Key to = new Key(exchange.getKey());
       to.append(Key.AFTER);
@@ -269,6 +569,7 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
    */
   public void clear() {
     try {
+      Exchange exchange = exchange();
       exchange.clear();
       exchange.removeAll();
     } catch (Exception e) {
@@ -277,75 +578,110 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
   }
 
   /**
-   * Returns the set of cache keys associated with this group.
-   * TODO implement a lazy-loading equivalent with Iterator/Iterable
+   * Returns the set of cache keys associated with this group. All the keys are held in memory, see
+   * {@link #keys(Object)} for a lazy equivalent.
    *
    * @param group The group.
    * @return The set of cache keys for this group.
    */
-  @SuppressWarnings("unchecked")
   public Set keySet(Object key) {
-    try {
-      Set<Object> keys = new LinkedHashSet<Object>();
-      exchange.clear();
-      Exchange iteratorExchange = new Exchange(exchange);
-      iteratorExchange.append(key);
-      iteratorExchange.append(Key.BEFORE);
-      while (iteratorExchange.next(false)) {
-        keys.add(iteratorExchange.getKey().indexTo(-1).decode());
-      }
-      return keys;
-    } catch (Exception e) {
-      throw new IllegalStateException("Fail to get keys from cache " + name, e);
-    }
+    return toSet(keys(key));
   }
 
   public Set keySet(Object firstKey, Object secondKey) {
-    try {
-      Set<Object> keys = new LinkedHashSet<Object>();
-      exchange.clear();
-      Exchange iteratorExchange = new Exchange(exchange);
-      iteratorExchange.append(firstKey);
-      iteratorExchange.append(secondKey);
-      iteratorExchange.append(Key.BEFORE);
-      while (iteratorExchange.next(false)) {
-        keys.add(iteratorExchange.getKey().indexTo(-1).decode());
-      }
-      return keys;
-    } catch (Exception e) {
-      throw new IllegalStateException("Fail to get keys from cache " + name, e);
-    }
+    return toSet(keys(firstKey, secondKey));
   }
 
   /**
-   * Returns the set of keys associated with this cache.
+   * Returns the set of keys associated with this cache. All the keys are held in memory, see {@link #keys()} for
+   * a lazy equivalent.
    *
    * @return The set containing the keys for this cache.
    */
   public Set<Object> keySet() {
+    return toSet(keys());
+  }
+
+  private static Set<Object> toSet(Iterable<Object> keys) {
+    Set<Object> set = new LinkedHashSet<Object>();
+    for (Object key : keys) {
+      set.add(key);
+    }
+    return set;
+  }
+
+  /**
+   * Lazy-loading keys of the cache. Keys stored with several segments appear once, by their first segment.
+   */
+  public Iterable<Object> keys() {
+    return new KeyIterable(new Object[0]);
+  }
+
+  /**
+   * Lazy-loading keys of the given group, by their segment following the group
+   */
+  public Iterable<Object> keys(Object key) {
+    return new KeyIterable(new Object[] {key});
+  }
+
+  public Iterable<Object> keys(Object firstKey, Object secondKey) {
+    return new KeyIterable(new Object[] {firstKey, secondKey});
+  }
+
+  /**
+   * Number of keys that {@link #keys()} returns. The tree is walked without fetching values nor decoding keys.
+   */
+  public long count() {
+    return countKeys(new Object[0]);
+  }
+
+  /**
+   * Number of keys that {@link #keys(Object)} returns, without fetching values nor decoding keys
+   */
+  public long count(Object key) {
+    return countKeys(new Object[] {key});
+  }
+
+  public long count(Object firstKey, Object secondKey) {
+    return countKeys(new Object[] {firstKey, secondKey});
+  }
+
+  private long countKeys(Object[] group) {
+    Exchange exchange = groupExchange(group);
     try {
-      Set<Object> keys = new LinkedHashSet<Object>();
-      exchange.clear();
-      Exchange iteratorExchange = new Exchange(exchange);
-      iteratorExchange.append(Key.BEFORE);
-      while (iteratorExchange.next(false)) {
-        keys.add(iteratorExchange.getKey().indexTo(-1).decode());
+      long count = 0;
+      while (exchange.traverse(Key.Direction.GT, false, 0)) {
+        count++;
       }
-      return keys;
-    } catch (Exception e) {
-      throw new IllegalStateException("Fail to get keys from cache " + name, e);
+      return count;
+    } catch (PersistitException e) {
+      throw new IllegalStateException("Fail to count keys of cache " + name, e);
     }
   }
 
+  /**
+   * New exchange positioned before the first key of the group
+   */
+  private Exchange groupExchange(Object[] group) {
+    Exchange exchange = new Exchange(exchange());
+    exchange.clear();
+    for (Object o : group) {
+      exchange.append(o);
+    }
+    exchange.append(Key.BEFORE);
+    return exchange;
+  }
+
   /**
    * Lazy-loading values for a given key
    */
   public Iterable<V> values(Object key) {
     try {
+      Exchange exchange = exchange();
       exchange.clear();
       exchange.append(key).append(Key.BEFORE);
       Exchange iteratorExchange = new Exchange(exchange);
-      return new ValueIterable<V>(iteratorExchange, false);
+      return new ValueIterable<V>(iteratorExchange, false, listener);
     } catch (Exception e) {
       throw new IllegalStateException("Fail to get values from cache " + name, e);
     }
@@ -357,44 +693,143 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
   @Override
   public Iterable<V> values() {
     try {
+      Exchange exchange = exchange();
       exchange.clear().append(Key.BEFORE);
       Exchange iteratorExchange = new Exchange(exchange);
-      return new ValueIterable<V>(iteratorExchange, true);
+      return new ValueIterable<V>(iteratorExchange, true, listener);
     } catch (Exception e) {
       throw new IllegalStateException("Fail to get values from cache " + name, e);
     }
   }
 
+  /**
+   * Only keys made of a single segment are in the range, the ones stored with several segments are skipped.
+   */
+  @Override
+  public Iterable<Map.Entry<K, V>> range(K fromKey, K toKey) {
+    if (toKey == null) {
+      throw new IllegalArgumentException("Range needs an upper bound");
+    }
+    return new RangeIterable(fromKey, toKey, null);
+  }
+
+  /**
+   * Only keys made of a single segment are scanned, the ones stored with several segments are skipped.
+   */
+  @Override
+  public Iterable<Map.Entry<K, V>> prefix(String prefix) {
+    return new RangeIterable(prefix, null, prefix);
+  }
+
   public Iterable<Entry<V>> entries() {
+    Exchange exchange = exchange();
     exchange.clear().to(Key.BEFORE);
     return new EntryIterable(new Exchange(exchange), true);
   }
 
   public Iterable<SubEntry<V>> subEntries(Object key) {
+    Exchange exchange = exchange();
     exchange.clear().append(key).append(Key.BEFORE);
     return new SubEntryIterable(new Exchange(exchange), false);
   }
 
-  private void resetKey(Object key) {
+  /**
+   * Exchange of the current thread, created on its first access to the cache
+   */
+  private Exchange exchange() {
+    ExchangeHolder holder = exchanges.get();
+    Exchange exchange = holder.exchange;
+    if (exchange == null) {
+      if (persistit == null) {
+        throw new IllegalStateException("Cache is closed: " + name);
+      }
+      try {
+        exchange = new Exchange(persistit, volume, name, true);
+      } catch (PersistitException e) {
+        throw new IllegalStateException("Fail to get exchange on cache " + name, e);
+      }
+      holder.exchange = exchange;
+      exchangeHolders.add(holder);
+    }
+    return exchange;
+  }
+
+  private Exchange resetKey(Object key) {
+    Exchange exchange = exchange();
     exchange.clear();
     exchange.append(key);
+    return exchange;
   }
 
-  private void resetKey(Object first, Object second) {
+  private Exchange resetKey(long key) {
+    Exchange exchange = exchange();
+    exchange.clear();
+    exchange.append(key);
+    return exchange;
+  }
+
+  private Exchange resetKey(byte[] key) {
+    Exchange exchange = exchange();
+    exchange.clear();
+    exchange.getKey().appendByteArray(key, 0, key.length);
+    return exchange;
+  }
+
+  private Exchange resetKey(Object first, Object second) {
+    Exchange exchange = exchange();
     exchange.clear();
     exchange.append(first).append(second);
+    return exchange;
   }
 
-  private void resetKey(Object first, Object second, Object third) {
+  private Exchange resetKey(Object first, Object second, Object third) {
+    Exchange exchange = exchange();
     exchange.clear();
     exchange.append(first).append(second).append(third);
+    return exchange;
   }
 
-  private void resetKey(Object[] keys) {
+  private Exchange resetKey(Object[] keys) {
+    Exchange exchange = exchange();
     exchange.clear();
     for (Object o : keys) {
       exchange.append(o);
     }
+    return exchange;
+  }
+
+  /**
+   * Fraction of the page reads served by the buffer pool since the cache started
+   */
+  public double bufferPoolHitRatio() {
+    return bufferPoolInfo().getHitRatio();
+  }
+
+  /**
+   * Number of buffers of the pool, as computed by Persistit from the memory budget
+   */
+  public int bufferCount() {
+    return bufferPoolInfo().getBufferCount();
+  }
+
+  private Management.BufferPoolInfo bufferPoolInfo() {
+    try {
+      for (Management.BufferPoolInfo info : persistit.getManagement().getBufferPoolInfoArray()) {
+        if (info.getBufferSize() == pageSize) {
+          return info;
+        }
+      }
+    } catch (RemoteException e) {
+      throw new IllegalStateException("Fail to get buffer pool of cache " + name, e);
+    }
+    throw new IllegalStateException("No buffer pool of " + pageSize + " bytes in cache " + name);
+  }
+
+  /**
+   * Size in bytes of the pages allocated in the volume
+   */
+  long volumeSize() {
+    return volume.getNextAvailablePage() * volume.getPageSize();
   }
 
   //
@@ -404,8 +839,8 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
   private static class ValueIterable<T extends Serializable> implements Iterable<T> {
     private final Iterator<T> iterator;
 
-    private ValueIterable(Exchange exchange, boolean deep) {
-      this.iterator = new ValueIterator<T>(exchange, deep);
+    private ValueIterable(Exchange exchange, boolean deep, CacheListener listener) {
+      this.iterator = new ValueIterator<T>(exchange, deep, listener);
     }
 
     @Override
@@ -417,10 +852,12 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
   private static class ValueIterator<T extends Serializable> implements Iterator<T> {
     private final Exchange exchange;
     private final boolean deep;
+    private final CacheListener listener;
 
-    private ValueIterator(Exchange exchange, boolean deep) {
+    private ValueIterator(Exchange exchange, boolean deep, CacheListener listener) {
       this.exchange = exchange;
       this.deep = deep;
+      this.listener = listener;
     }
 
     @Override
@@ -441,6 +878,7 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
       }
       T value = null;
       if (exchange.getValue().isDefined()) {
+        listener.deserialized(exchange.getValue().getEncodedSize());
         value = (T) exchange.getValue().get();
       }
       return value;
@@ -452,6 +890,178 @@ public class PersisitItCache<K, V extends Serializable> implements Cache<K, V> {
     }
   }
 
+  /**
+   * Each iteration traverses the tree with its own exchange. The range ends either before {@code toKey} or after the
+   * keys starting with {@code prefix}, exactly one of them is given.
+   */
+  private class RangeIterable implements Iterable<Map.Entry<K, V>> {
+    private final Object fromKey;
+    private final Object toKey;
+    private final String prefix;
+
+    private RangeIterable(Object fromKey, @Nullable Object toKey, @Nullable String prefix) {
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      Exchange exchange = new Exchange(exchange());
+      exchange.clear().append(fromKey);
+      Key to = null;
+      if (toKey != null) {
+        to = new Key(persistit);
+        to.append(toKey);
+      }
+      return new RangeIterator<K, V>(exchange, to, prefix, listener);
+    }
+  }
+
+  private static class RangeIterator<K, T extends Serializable> implements Iterator<Map.Entry<K, T>> {
+    private final Exchange exchange;
+    private final Key toKey;
+    private final String prefix;
+    private final CacheListener listener;
+    private boolean started;
+    private boolean positioned;
+    private boolean found;
+
+    private RangeIterator(Exchange exchange, @Nullable Key toKey, @Nullable String prefix, CacheListener listener) {
+      this.exchange = exchange;
+      this.toKey = toKey;
+      this.prefix = prefix;
+      this.listener = listener;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (!positioned) {
+        found = advance();
+        positioned = true;
+      }
+      return found;
+    }
+
+    /**
+     * Moves to the next key with a value, the first one being the start key or the key right after it
+     */
+    private boolean advance() {
+      try {
+        boolean more = started ? exchange.next(false) : exchange.traverse(Key.Direction.GTEQ, false);
+        started = true;
+        while (more && inRange(exchange.getKey())) {
+          if (exchange.getValue().isDefined()) {
+            return true;
+          }
+          more = exchange.next(false);
+        }
+        return false;
+      } catch (PersistitException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private boolean inRange(Key key) {
+      if (toKey != null) {
+        return key.compareTo(toKey) < 0;
+      }
+      Object decoded = key.indexTo(0).decode();
+      return decoded instanceof String && ((String) decoded).startsWith(prefix);
+    }
+
+    @Override
+    public Map.Entry<K, T> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      positioned = false;
+      listener.deserialized(exchange.getValue().getEncodedSize());
+      K key = (K) exchange.getKey().indexTo(0).decode();
+      return new AbstractMap.SimpleImmutableEntry<>(key, (T) exchange.getValue().get());
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Removing an item is not supported");
+    }
+  }
+
+  /**
+   * Each iteration walks the group with its own exchange
+   */
+  private class KeyIterable implements Iterable<Object> {
+    private final Object[] group;
+
+    private KeyIterable(Object[] group) {
+      this.group = group;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+      return new KeyIterator(groupExchange(group));
+    }
+  }
+
+  private static class KeyIterator implements Iterator<Object> {
+    private final Exchange exchange;
+    private boolean positioned;
+    private boolean found;
+
+    private KeyIterator(Exchange exchange) {
+      this.exchange = exchange;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (!positioned) {
+        try {
+          found = exchange.traverse(Key.Direction.GT, false, 0);
+        } catch (PersistitException e) {
+          throw new IllegalStateException(e);
+        }
+        positioned = true;
+      }
+      return found;
+    }
+
+    @Override
+    public Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      positioned = false;
+      return exchange.getKey().indexTo(-1).decode();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Removing an item is not supported");
+    }
+  }
+
+  /**
+   * Exchange of a thread, dropped when the cache is closed
+   */
+  private static class ExchangeHolder {
+    private volatile Exchange exchange;
+  }
+
+  private static class KeyedValue<T> implements Comparable<KeyedValue<T>> {
+    private final KeyState key;
+    private final T value;
+
+    private KeyedValue(KeyState key, T value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public int compareTo(KeyedValue<T> other) {
+      return key.compareTo(other.key);
+    }
+  }
+
   private static class SubEntryIterable<T extends Serializable> implements Iterable<SubEntry<T>> {
     private final SubEntryIterator<T> it;
 
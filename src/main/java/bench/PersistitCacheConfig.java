@@ -0,0 +1,241 @@
+package bench;
+
+import com.persistit.encoding.ValueCoder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Settings of the Persistit instance behind a {@link PersisitItCache}.
+ * <p>
+ * The buffer pool is sized from a memory budget, either a number of bytes or a fraction of the maximum heap.
+ * Persistit converts the budget into a number of buffers, taking the overhead of each buffer into account. As
+ * buffers are allocated when the cache starts, the whole budget is taken from the heap at once.
+ * </p>
+ * <p>
+ * The volume starts with {@code initialPages} and grows by {@code extensionPages} until {@code maximumPages}.
+ * </p>
+ * <p>
+ * A persistent cache stores its data in the regular volume, which is kept when the cache is closed, and reopened by
+ * the next cache on the same path if the header written at the close is still valid, see {@link StoreHeader}. The
+ * value coders are part of the header, as values written by a coder can only be read back by the same coder.
+ * </p>
+ */
+public final class PersistitCacheConfig {
+
+  private static final int[] PAGE_SIZES = {2048, 4096, 8192, 16384};
+  private static final double DEFAULT_HEAP_FRACTION = 0.1;
+  private static final String PERSISTENT_FORMAT = "persistit-3.3:1";
+
+  private final File path;
+  private final int pageSize;
+  private final long bufferMemory;
+  private final double heapFraction;
+  private final long initialPages;
+  private final long extensionPages;
+  private final long maximumPages;
+  private final boolean concurrent;
+  private final boolean persistent;
+  private final Map<Class<?>, ValueCoder> valueCoders;
+
+  private PersistitCacheConfig(Builder builder) {
+    this.path = builder.path;
+    this.pageSize = builder.pageSize;
+    this.bufferMemory = builder.bufferMemory;
+    this.heapFraction = builder.heapFraction;
+    this.initialPages = builder.initialPages;
+    this.extensionPages = builder.extensionPages;
+    this.maximumPages = builder.maximumPages;
+    this.concurrent = builder.concurrent;
+    this.persistent = builder.persistent;
+    this.valueCoders = Collections.unmodifiableMap(new LinkedHashMap<>(builder.valueCoders));
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public File path() {
+    return path;
+  }
+
+  public int pageSize() {
+    return pageSize;
+  }
+
+  /**
+   * @return true if the cache is used by several threads
+   */
+  public boolean concurrent() {
+    return concurrent;
+  }
+
+  /**
+   * @return true if the data is kept when the cache is closed
+   */
+  public boolean persistent() {
+    return persistent;
+  }
+
+  /**
+   * @return the coders registered when Persistit starts, by value class
+   */
+  public Map<Class<?>, ValueCoder> valueCoders() {
+    return valueCoders;
+  }
+
+  /**
+   * Header of the persistent data, which is only valid for the same page size and the same value coders
+   */
+  StoreHeader header() {
+    StringBuilder format = new StringBuilder(PERSISTENT_FORMAT).append(":pageSize=").append(pageSize);
+    for (Map.Entry<Class<?>, ValueCoder> entry : valueCoders.entrySet()) {
+      format.append(':').append(entry.getKey().getName()).append('=').append(coderFormat(entry.getValue()));
+    }
+    return new StoreHeader(format.toString(), path);
+  }
+
+  private static String coderFormat(ValueCoder coder) {
+    if (coder instanceof KryoValueCoder) {
+      return "kryo/" + ((KryoValueCoder) coder).compression().codec();
+    }
+    return coder.getClass().getName();
+  }
+
+  /**
+   * Persistit properties, paths being relative to the {@code datapath} property
+   */
+  Properties toProperties() {
+    Properties props = new Properties();
+    props.setProperty("datapath", path.getAbsolutePath());
+    props.setProperty("logpath", "${datapath}/log");
+    props.setProperty("logfile", "${logpath}/persistit_${timestamp}.log");
+    props.setProperty("buffer.memory." + pageSize, bufferMemorySpec());
+    props.setProperty("journalpath", "${datapath}/journal");
+    props.setProperty("tmpvoldir", "${datapath}");
+    props.setProperty("tmpvolpagesize", String.valueOf(pageSize));
+    props.setProperty("tmpvolmaxsize", String.valueOf(maximumPages * pageSize));
+    props.setProperty("volume.1", String.format("${datapath}/persistit,create,pageSize:%d,initialPages:%d,extensionPages:%d,maximumPages:%d",
+      pageSize, initialPages, extensionPages, maximumPages));
+    return props;
+  }
+
+  /**
+   * Persistit memory specification: minimum, maximum, reserved memory and fraction of the available heap
+   */
+  private String bufferMemorySpec() {
+    if (bufferMemory > 0) {
+      return bufferMemory + "," + bufferMemory + ",0,1";
+    }
+    return "0," + Long.MAX_VALUE + ",0," + heapFraction;
+  }
+
+  @Override
+  public String toString() {
+    String memory = bufferMemory > 0 ? (bufferMemory >> 20) + "MB" : Math.round(heapFraction * 100) + "% of heap";
+    return String.format("pageSize=%d bufferPool=%s pages=%d+%d..%d%s", pageSize, memory, initialPages, extensionPages, maximumPages,
+      persistent ? " persistent" : "");
+  }
+
+  public static final class Builder {
+    private File path = new File("target/caches");
+    private int pageSize = 8192;
+    private long bufferMemory = 0;
+    private double heapFraction = DEFAULT_HEAP_FRACTION;
+    private long initialPages = 1_000;
+    private long extensionPages = 1_000;
+    private long maximumPages = Integer.MAX_VALUE;
+    private boolean concurrent = false;
+    private boolean persistent = false;
+    private final Map<Class<?>, ValueCoder> valueCoders = new LinkedHashMap<>();
+
+    private Builder() {
+    }
+
+    /**
+     * Directory of the volume and of the journal. It is deleted when the cache starts, unless the persistent data it
+     * contains is reopened.
+     */
+    public Builder setPath(File path) {
+      this.path = path;
+      return this;
+    }
+
+    /**
+     * @param pageSize 2048, 4096, 8192 or 16384 bytes
+     */
+    public Builder setPageSize(int pageSize) {
+      if (Arrays.binarySearch(PAGE_SIZES, pageSize) < 0) {
+        throw new IllegalArgumentException("Page size must be one of " + Arrays.toString(PAGE_SIZES) + ": " + pageSize);
+      }
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    /**
+     * Buffer pool sized to the given number of bytes, overhead of buffers included, instead of a fraction of the heap
+     */
+    public Builder setBufferMemory(long bytes) {
+      if (bytes <= 0) {
+        throw new IllegalArgumentException("Buffer memory must be positive: " + bytes);
+      }
+      this.bufferMemory = bytes;
+      return this;
+    }
+
+    /**
+     * Buffer pool sized to the given fraction of the maximum heap, instead of a number of bytes
+     */
+    public Builder setHeapFraction(double fraction) {
+      if (fraction <= 0 || fraction > 1) {
+        throw new IllegalArgumentException("Heap fraction must be in ]0, 1]: " + fraction);
+      }
+      this.bufferMemory = 0;
+      this.heapFraction = fraction;
+      return this;
+    }
+
+    public Builder setVolumeGrowth(long initialPages, long extensionPages, long maximumPages) {
+      if (initialPages <= 0 || extensionPages <= 0 || maximumPages < initialPages) {
+        throw new IllegalArgumentException(String.format("Invalid volume growth: initial=%d extension=%d maximum=%d", initialPages, extensionPages,
+          maximumPages));
+      }
+      this.initialPages = initialPages;
+      this.extensionPages = extensionPages;
+      this.maximumPages = maximumPages;
+      return this;
+    }
+
+    /**
+     * @param concurrent true if the cache is used by several threads
+     */
+    public Builder setConcurrent(boolean concurrent) {
+      this.concurrent = concurrent;
+      return this;
+    }
+
+    /**
+     * @param persistent true to keep the data when the cache is closed, and to reopen it when the next cache starts
+     */
+    public Builder setPersistent(boolean persistent) {
+      this.persistent = persistent;
+      return this;
+    }
+
+    /**
+     * Encodes values of the given class with the given coder instead of the Persistit default serialization
+     */
+    public Builder setValueCoder(Class<?> valueClass, ValueCoder coder) {
+      this.valueCoders.put(valueClass, coder);
+      return this;
+    }
+
+    public PersistitCacheConfig build() {
+      return new PersistitCacheConfig(this);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the default Persistit value encoding with {@link KryoValueCoder}: insert and read throughput,
+ * and volume size once the data is loaded (printed at the end of each trial).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PersistitCoderBenchmark {
+
+  static PersisitItCache<String, Measure> newCache(String coder) {
+    PersisitItCache<String, Measure> cache = new PersisitItCache<>();
+    switch (coder) {
+      case "default":
+        break;
+      case "kryo":
+        cache.registerValueCoder(Measure.class, new KryoValueCoder());
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown coder: " + coder);
+    }
+    return cache;
+  }
+
+  @State(Scope.Benchmark)
+  public static class EmptyCache {
+
+    @Param({"default", "kryo"})
+    public String coder;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    PersisitItCache<String, Measure> cache;
+    String data;
+    long next;
+
+    @Setup(Level.Trial)
+    public void generate() {
+      data = CacheBenchmark.generateData(dataSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void open() {
+      cache = newCache(coder);
+      next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+      System.out.println(coder + " coder, " + next + " entries, volume size: " + cache.volumeSize() + " bytes");
+      cache.close();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"default", "kryo"})
+    public String coder;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    PersisitItCache<String, Measure> cache;
+
+    @Setup(Level.Trial)
+    public void load() {
+      String data = CacheBenchmark.generateData(dataSize);
+      cache = newCache(coder);
+      for (long i = 0; i < count; i++) {
+        cache.put("key" + i, new Measure("key" + i, data, i, new Date()));
+      }
+      System.out.println(coder + " coder, " + count + " entries, volume size: " + cache.volumeSize() + " bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public PersisitItCache<String, Measure> insert(EmptyCache state) {
+    long i = state.next++;
+    return state.cache.put("key" + i, new Measure("key" + i, state.data, i, new Date()));
+  }
+
+  @Benchmark
+  public Measure randomSelect(LoadedCache state) {
+    return state.cache.get("key" + ThreadLocalRandom.current().nextLong(state.count));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(PersistitCoderBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,111 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading all the measures of a component, keyed by {@code "<component>:<metric>"}: one prefix scan compared with
+ * one point get per metric.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PrefixScanBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"persistit", "lucene", "mapdb"})
+    public String backend;
+
+    @Param({"1000"})
+    public int components;
+
+    @Param({"50"})
+    public int metrics;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+
+    @Setup(Level.Trial)
+    public void load() {
+      String data = CacheBenchmark.generateData(dataSize);
+      cache = CacheBenchmark.newCache(backend);
+      long value = 0;
+      for (int component = 0; component < components; component++) {
+        for (int metric = 0; metric < metrics; metric++) {
+          String key = key(component, metric);
+          cache.put(key, new Measure(key, data, value++, new Date()));
+        }
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      cache.close();
+    }
+
+    int randomComponent() {
+      return ThreadLocalRandom.current().nextInt(components);
+    }
+  }
+
+  private static String prefix(int component) {
+    return "component" + component + ":";
+  }
+
+  private static String key(int component, int metric) {
+    return prefix(component) + "metric" + metric;
+  }
+
+  @Benchmark
+  public int prefixScan(LoadedCache state, Blackhole blackhole) {
+    int count = 0;
+    for (Map.Entry<String, Measure> entry : state.cache.prefix(prefix(state.randomComponent()))) {
+      blackhole.consume(entry.getValue());
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int pointGets(LoadedCache state, Blackhole blackhole) {
+    int component = state.randomComponent();
+    for (int metric = 0; metric < state.metrics; metric++) {
+      blackhole.consume(state.cache.get(key(component, metric)));
+    }
+    return state.metrics;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(PrefixScanBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the numeric value of random measures: full deserialization compared with a projection of the raw bytes.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RawValueBenchmark {
+
+  static Cache<String, Measure> newCache(String backend) {
+    if ("persistit".equals(backend)) {
+      return PersistitCoderBenchmark.newCache("kryo");
+    }
+    return CacheBenchmark.newCache(backend);
+  }
+
+  @State(Scope.Benchmark)
+  public static class LoadedCache {
+
+    @Param({"persistit", "lucene", "mmap"})
+    public String backend;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+    RawValueCache<String> rawCache;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void load() {
+      String data = CacheBenchmark.generateData(dataSize);
+      cache = newCache(backend);
+      rawCache = (RawValueCache<String>) cache;
+      for (long i = 0; i < count; i++) {
+        cache.put("key" + i, new Measure("key" + i, data, i, new Date()));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public Long fullDecode(LoadedCache state) {
+    return state.cache.get("key" + ThreadLocalRandom.current().nextLong(state.count)).getValue();
+  }
+
+  @Benchmark
+  public Long projection(LoadedCache state) {
+    return Measure.value(state.rawCache.getRaw("key" + ThreadLocalRandom.current().nextLong(state.count)));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(RawValueBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,20 @@
+package bench;
+
+import javax.annotation.CheckForNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Access to the stored bytes of the values, for callers that only need a few fields and do not want to pay for
+ * the deserialization of the whole object. Values are encoded by {@code Kryo#writeObject}, without references.
+ */
+public interface RawValueCache<K> {
+
+  /**
+   * @return read-only view of the stored value, from its position to its limit. It is only valid until the next
+   * call of the same thread on the cache.
+   */
+  @CheckForNull
+  ByteBuffer getRaw(K key);
+
+}
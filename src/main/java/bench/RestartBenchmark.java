@@ -0,0 +1,150 @@
+package bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to the first get after a restart: a persistent cache reopens the data written by the previous process, the
+ * other caches are rebuilt from the entries first.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RestartBenchmark {
+
+  private static final int BATCH_SIZE = 10_000;
+  private static final File DIR = new File("target/restart");
+
+  @State(Scope.Benchmark)
+  public static class Restart {
+
+    @Param({"persistit", "lucene", "mapdb"})
+    public String backend;
+
+    @Param({"true", "false"})
+    public boolean persistent;
+
+    @Param({"1000000"})
+    public int count;
+
+    @Param({"100"})
+    public int dataSize;
+
+    String data;
+    Cache<String, Measure> cache;
+
+    /**
+     * The persistent data is written once, as a previous process would have done
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      data = CacheBenchmark.generateData(dataSize);
+      FileUtils.deleteQuietly(DIR);
+      if (persistent) {
+        Cache<String, Measure> previous = open();
+        load(previous);
+        previous.close();
+      }
+    }
+
+    Cache<String, Measure> open() {
+      File path = new File(DIR, backend);
+      switch (backend) {
+        case "persistit":
+          return persistent ? new PersisitItCache<String, Measure>(PersistitCacheConfig.builder().setPath(path).setPersistent(true).build())
+            : new PersisitItCache<String, Measure>();
+        case "lucene":
+          return persistent ? new LuceneCache<>(Measure.class, path) : new LuceneCache<>(Measure.class);
+        case "mapdb":
+          return persistent ? new MapDBCache<Measure>(path, Compression.NONE) : new MapDBCache<Measure>();
+        default:
+          throw new IllegalArgumentException("Unknown backend: " + backend);
+      }
+    }
+
+    void load(Cache<String, Measure> target) {
+      Map<String, Measure> batch = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        batch.put("key" + i, new Measure("key" + i, data, (long) i, new Date()));
+        if (batch.size() == BATCH_SIZE) {
+          target.putAll(batch);
+          batch.clear();
+        }
+      }
+      target.putAll(batch);
+    }
+
+    /**
+     * Closing a persistent cache writes the data and the header reopened by the next iteration
+     */
+    @TearDown(Level.Iteration)
+    public void close() {
+      if (cache != null) {
+        cache.close();
+        cache = null;
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() {
+      FileUtils.deleteQuietly(DIR);
+    }
+  }
+
+  @Benchmark
+  public Measure restartAndGet(Restart state) {
+    Cache<String, Measure> cache = state.open();
+    state.cache = cache;
+    if (!state.persistent) {
+      state.load(cache);
+    } else if (!wasReopened(cache)) {
+      throw new IllegalStateException("Persistent data was not reopened: " + state.backend);
+    }
+    Measure first = cache.get("key" + state.count / 2);
+    if (first == null) {
+      throw new IllegalStateException("Missing entry after restart: " + state.backend);
+    }
+    return first;
+  }
+
+  private static boolean wasReopened(Cache<String, Measure> cache) {
+    if (cache instanceof PersisitItCache) {
+      return ((PersisitItCache<String, Measure>) cache).wasReopened();
+    }
+    if (cache instanceof LuceneCache) {
+      return ((LuceneCache<Measure>) cache).wasReopened();
+    }
+    return ((MapDBCache<Measure>) cache).wasReopened();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(RestartBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
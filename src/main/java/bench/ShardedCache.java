@@ -0,0 +1,434 @@
+package bench;
+
+import javax.annotation.Nullable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache whose keys are hashed across independent caches, the shards, each one with its own directory and engine,
+ * so that the single points of serialization of the backends (Persistit exchange, Lucene searcher, MapDB tree) are
+ * split between the shards.
+ * <p>
+ * The shard of a key depends on the content of the key and on the number of shards, which must not change for the
+ * data of persistent shards.
+ * </p>
+ * <p>
+ * Each shard has its own thread. Batch operations, {@link #putAll(Map)} and {@link #getAll(Collection)}, run the part
+ * of each shard on its thread, in parallel. When threads are pinned, the single-key operations on a shard run on its
+ * thread as well: a shard then has a single writer, which is what a {@link PersisitItCache} on a temporary volume
+ * supports, and its engine state stays in the caches of the core running the thread. Otherwise single-key operations
+ * run in the caller thread, and such shards are rejected.
+ * </p>
+ * <p>
+ * Scans only read, in the caller thread even when threads are pinned: {@link #values()} iterates the shards one after
+ * the other, {@link #range} and {@link #prefix} merge the entries of the shards in the key order of the backend,
+ * which must be given when it is not the natural order of the keys. Lucene orders String keys by their UTF-8 bytes,
+ * see {@link #CODE_POINT_ORDER}.
+ * </p>
+ */
+public class ShardedCache<K, V extends Serializable> implements Cache<K, V>, Instrumented {
+
+  private static final AtomicInteger CACHE_COUNT = new AtomicInteger();
+
+  /**
+   * Order of Strings by code point, which is the order of their UTF-8 bytes. It differs from the natural order of
+   * Strings, by UTF-16 char, for supplementary characters.
+   */
+  public static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+    @Override
+    public int compare(String s1, String s2) {
+      int i1 = 0;
+      int i2 = 0;
+      while (i1 < s1.length() && i2 < s2.length()) {
+        int c1 = s1.codePointAt(i1);
+        int c2 = s2.codePointAt(i2);
+        if (c1 != c2) {
+          return Integer.compare(c1, c2);
+        }
+        i1 += Character.charCount(c1);
+        i2 += Character.charCount(c2);
+      }
+      return Integer.compare(s1.length() - i1, s2.length() - i2);
+    }
+  };
+
+  private final List<Cache<K, V>> shards;
+  private final ExecutorService[] shardThreads;
+  private final boolean pinned;
+  private final Comparator<? super K> keyOrder;
+
+  public ShardedCache(List<? extends Cache<K, V>> shards) {
+    this(shards, false);
+  }
+
+  public ShardedCache(List<? extends Cache<K, V>> shards, boolean pinned) {
+    this(shards, pinned, null);
+  }
+
+  /**
+   * @param shards independent caches, one per shard
+   * @param pinned true to run the single-key operations on a shard on the thread of the shard
+   * @param keyOrder order of the keys of the scans of the shards, null for the natural order
+   * @throws IllegalArgumentException if threads are not pinned and a shard does not support concurrent writers
+   */
+  public ShardedCache(List<? extends Cache<K, V>> shards, boolean pinned, @Nullable Comparator<? super K> keyOrder) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("Sharded cache needs at least one shard");
+    }
+    if (!pinned) {
+      for (Cache<K, V> shard : shards) {
+        if (Caches.isSingleWriter(shard)) {
+          throw new IllegalArgumentException("Shard does not support concurrent writers, threads must be pinned: " + shard);
+        }
+      }
+    }
+    this.shards = new ArrayList<>(shards);
+    this.pinned = pinned;
+    this.keyOrder = keyOrder;
+    this.shardThreads = new ExecutorService[shards.size()];
+    String prefix = "sharded-cache-" + CACHE_COUNT.incrementAndGet() + "-shard-";
+    for (int i = 0; i < shardThreads.length; i++) {
+      final String name = prefix + i;
+      shardThreads[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, name);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  public int shardCount() {
+    return shards.size();
+  }
+
+  /**
+   * Shard of the key, from the low bits of its hash. The high bits are left to the Bloom filters, which pick their
+   * block from them: a filter in front of a shard would otherwise use a fraction of its blocks.
+   */
+  int shardOf(Object key) {
+    long hash = BloomFilter.hash(key);
+    return (int) (((hash & 0xffffffffL) * shards.size()) >>> 32);
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    for (Cache<K, V> shard : shards) {
+      if (shard instanceof Instrumented) {
+        ((Instrumented) shard).setListener(listener);
+      }
+    }
+  }
+
+  /**
+   * Waits for the operations running on the shard threads, then closes the shards
+   */
+  @Override
+  public void close() {
+    for (ExecutorService shardThread : shardThreads) {
+      shardThread.shutdown();
+    }
+    try {
+      for (ExecutorService shardThread : shardThreads) {
+        if (!shardThread.awaitTermination(1, TimeUnit.MINUTES)) {
+          throw new IllegalStateException("Fail to complete the pending operations of the cache");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while closing the cache", e);
+    }
+    for (Cache<K, V> shard : shards) {
+      shard.close();
+    }
+  }
+
+  @Override
+  public ShardedCache<K, V> put(final K key, final V value) {
+    final int shard = shardOf(key);
+    onShard(shard, new Callable<Void>() {
+      @Override
+      public Void call() {
+        shards.get(shard).put(key, value);
+        return null;
+      }
+    });
+    return this;
+  }
+
+  /**
+   * The entries of each shard are stored by its thread, in parallel with the other shards
+   */
+  @Override
+  public ShardedCache<K, V> putAll(Map<K, V> entries) {
+    List<Map<K, V>> parts = new ArrayList<>(shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      parts.add(new LinkedHashMap<K, V>());
+    }
+    for (Map.Entry<K, V> entry : entries.entrySet()) {
+      parts.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+    }
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++) {
+      final Cache<K, V> shard = shards.get(i);
+      final Map<K, V> part = parts.get(i);
+      if (!part.isEmpty()) {
+        futures.add(shardThreads[i].submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            shard.putAll(part);
+            return null;
+          }
+        }));
+      }
+    }
+    for (Future<Void> future : futures) {
+      await(future);
+    }
+    return this;
+  }
+
+  @Override
+  public V get(final K key) {
+    final int shard = shardOf(key);
+    return onShard(shard, new Callable<V>() {
+      @Override
+      public V call() {
+        return shards.get(shard).get(key);
+      }
+    });
+  }
+
+  /**
+   * Reads the keys of each shard on its thread, in parallel with the other shards, and in key order when keys are
+   * comparable
+   *
+   * @return the values of the keys found
+   */
+  public Map<K, V> getAll(Collection<K> keys) {
+    List<List<K>> parts = new ArrayList<>(shards.size());
+    for (int i = 0; i < shards.size(); i++) {
+      parts.add(new ArrayList<K>());
+    }
+    for (K key : keys) {
+      parts.get(shardOf(key)).add(key);
+    }
+    List<Future<Map<K, V>>> futures = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++) {
+      final Cache<K, V> shard = shards.get(i);
+      final List<K> part = parts.get(i);
+      if (!part.isEmpty()) {
+        futures.add(shardThreads[i].submit(new Callable<Map<K, V>>() {
+          @Override
+          public Map<K, V> call() {
+            Map<K, V> found = new HashMap<>();
+            for (K key : Keys.sorted(part)) {
+              V value = shard.get(key);
+              if (value != null) {
+                found.put(key, value);
+              }
+            }
+            return found;
+          }
+        }));
+      }
+    }
+    Map<K, V> values = new HashMap<>();
+    for (Future<Map<K, V>> future : futures) {
+      values.putAll(await(future));
+    }
+    return values;
+  }
+
+  @Override
+  public boolean containsKey(final K key) {
+    final int shard = shardOf(key);
+    return onShard(shard, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return shards.get(shard).containsKey(key);
+      }
+    });
+  }
+
+  private <T> T onShard(int shard, Callable<T> operation) {
+    if (pinned) {
+      return await(shardThreads[shard].submit(operation));
+    }
+    try {
+      return operation.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Failures of the backend are rethrown as they are
+   */
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a shard", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Fail to run operation on shard", e.getCause());
+    }
+  }
+
+  /**
+   * Values of the first shard, then of the second one, and so on
+   */
+  @Override
+  public Iterable<V> values() {
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new ShardsIterator<>(shards.iterator());
+      }
+    };
+  }
+
+  @Override
+  public Iterable<Map.Entry<K, V>> range(K fromKey, K toKey) {
+    List<Iterable<Map.Entry<K, V>>> ranges = new ArrayList<>(shards.size());
+    for (Cache<K, V> shard : shards) {
+      ranges.add(shard.range(fromKey, toKey));
+    }
+    return merged(ranges, keyOrder);
+  }
+
+  @Override
+  public Iterable<Map.Entry<K, V>> prefix(String prefix) {
+    List<Iterable<Map.Entry<K, V>>> prefixes = new ArrayList<>(shards.size());
+    for (Cache<K, V> shard : shards) {
+      prefixes.add(shard.prefix(prefix));
+    }
+    return merged(prefixes, keyOrder);
+  }
+
+  private static <K, V> Iterable<Map.Entry<K, V>> merged(final List<Iterable<Map.Entry<K, V>>> sortedEntries,
+    @Nullable final Comparator<? super K> keyOrder) {
+    return new Iterable<Map.Entry<K, V>>() {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new MergingIterator<>(sortedEntries, keyOrder);
+      }
+    };
+  }
+
+  private static class ShardsIterator<K, V extends Serializable> implements Iterator<V> {
+    private final Iterator<Cache<K, V>> shards;
+    private Iterator<V> current = Collections.emptyIterator();
+
+    private ShardsIterator(Iterator<Cache<K, V>> shards) {
+      this.shards = shards;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext() && shards.hasNext()) {
+        current = shards.next().values().iterator();
+      }
+      return current.hasNext();
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  /**
+   * Merges entries sorted by key, in the given order or in the natural order of the keys. A key is in a single shard,
+   * so there are no duplicates.
+   */
+  private static class MergingIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+    private final PriorityQueue<Head<K, V>> heads;
+
+    private MergingIterator(List<Iterable<Map.Entry<K, V>>> sortedEntries, @Nullable final Comparator<? super K> keyOrder) {
+      heads = new PriorityQueue<>(Math.max(1, sortedEntries.size()), new Comparator<Head<K, V>>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Head<K, V> h1, Head<K, V> h2) {
+          K k1 = h1.entry.getKey();
+          K k2 = h2.entry.getKey();
+          return keyOrder != null ? keyOrder.compare(k1, k2) : ((Comparable<Object>) k1).compareTo(k2);
+        }
+      });
+      for (Iterable<Map.Entry<K, V>> entries : sortedEntries) {
+        Iterator<Map.Entry<K, V>> iterator = entries.iterator();
+        if (iterator.hasNext()) {
+          heads.add(new Head<>(iterator.next(), iterator));
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      Head<K, V> head = heads.poll();
+      if (head == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<K, V> entry = head.entry;
+      if (head.rest.hasNext()) {
+        heads.add(new Head<>(head.rest.next(), head.rest));
+      }
+      return entry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  private static class Head<K, V> {
+    private final Map.Entry<K, V> entry;
+    private final Iterator<Map.Entry<K, V>> rest;
+
+    private Head(Map.Entry<K, V> entry, Iterator<Map.Entry<K, V>> rest) {
+      this.entry = entry;
+      this.rest = rest;
+    }
+  }
+}
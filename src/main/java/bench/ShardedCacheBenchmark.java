@@ -0,0 +1,158 @@
+package bench;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random reads and updates on a cache sharded across independent backends. Like {@link ConcurrentCacheBenchmark},
+ * {@link #main(String[])} runs it from 1 thread up to the number of available processors, to show how throughput
+ * scales with the number of shards.
+ * <p>
+ * Persistit shards are on temporary volumes when threads are pinned, as each shard then has a single writer, and
+ * on regular volumes otherwise. They share the buffer pool memory of a single cache.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ShardedCacheBenchmark {
+
+  private static final File DIR = new File("target/shards");
+  private static final double PERSISTIT_HEAP_FRACTION = 0.1;
+  private static final int BATCH_SIZE = 10_000;
+
+  @State(Scope.Benchmark)
+  public static class SharedCache {
+
+    @Param({"persistit", "lucene", "mapdb"})
+    public String backend;
+
+    @Param({"1", "4", "8"})
+    public int shards;
+
+    @Param({"false", "true"})
+    public boolean pinned;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    @Param({"100"})
+    public int getAllSize;
+
+    ShardedCache<String, Measure> cache;
+
+    @Setup(Level.Trial)
+    public void load() {
+      FileUtils.deleteQuietly(DIR);
+      List<Cache<String, Measure>> backends = new ArrayList<>();
+      for (int i = 0; i < shards; i++) {
+        backends.add(newShard(new File(DIR, backend + "-" + i)));
+      }
+      cache = new ShardedCache<>(backends, pinned);
+      String data = CacheBenchmark.generateData(dataSize);
+      Map<String, Measure> batch = new HashMap<>();
+      for (long i = 0; i < count; i++) {
+        batch.put("key" + i, new Measure("key" + i, data, i, new Date()));
+        if (batch.size() == BATCH_SIZE) {
+          cache.putAll(batch);
+          batch.clear();
+        }
+      }
+      cache.putAll(batch);
+    }
+
+    private Cache<String, Measure> newShard(File path) {
+      switch (backend) {
+        case "persistit":
+          return new PersisitItCache<>(PersistitCacheConfig.builder()
+            .setPath(path)
+            .setHeapFraction(PERSISTIT_HEAP_FRACTION / shards)
+            .setConcurrent(!pinned)
+            .build());
+        case "lucene":
+          return new LuceneCache<>(Measure.class, path, false);
+        case "mapdb":
+          return new MapDBCache<>(path, Compression.NONE, false);
+        default:
+          throw new IllegalArgumentException("Unknown backend: " + backend);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      cache.close();
+      FileUtils.deleteQuietly(DIR);
+    }
+
+    long randomId() {
+      return ThreadLocalRandom.current().nextLong(count);
+    }
+  }
+
+  /**
+   * 90% reads, 10% read-modify-write.
+   */
+  @Benchmark
+  public Measure mixed(SharedCache state) {
+    long id = state.randomId();
+    Measure m = state.cache.get("key" + id);
+    if (ThreadLocalRandom.current().nextInt(10) == 0) {
+      m.setValue(2L * id);
+      state.cache.put("key" + id, m);
+    }
+    return m;
+  }
+
+  /**
+   * Random keys read by the shards in parallel
+   */
+  @Benchmark
+  public Map<String, Measure> getAll(SharedCache state) {
+    List<String> keys = new ArrayList<>(state.getAllSize);
+    for (int i = 0; i < state.getAllSize; i++) {
+      keys.add("key" + state.randomId());
+    }
+    return state.cache.getAll(keys);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      Options options = new OptionsBuilder()
+        .include(ShardedCacheBenchmark.class.getSimpleName())
+        .threads(threads)
+        .build();
+      new Runner(options).run();
+    }
+  }
+}
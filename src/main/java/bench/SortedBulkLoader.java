@@ -0,0 +1,21 @@
+package bench;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Fill of an empty cache from entries already sorted by key, as produced by a full rebuild. Backends take
+ * advantage of the order to build their structures sequentially instead of inserting one key at a time.
+ */
+public interface SortedBulkLoader<K, V extends Serializable> {
+
+  /**
+   * Entries are visible to readers once the method returns.
+   *
+   * @param sortedEntries entries in ascending key order, without duplicate keys, none of them being in the cache
+   * @return the number of entries loaded
+   */
+  long loadSorted(Iterator<Map.Entry<K, V>> sortedEntries);
+
+}
@@ -0,0 +1,132 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.AbstractMap;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to fill an empty cache with keys in ascending order, with {@link SortedBulkLoader#loadSorted(Iterator)}
+ * compared with a loop of {@link Cache#put(Object, java.io.Serializable)}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SortedLoadBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class EmptyCache {
+
+    @Param({"persistit", "lucene", "mapdb"})
+    public String backend;
+
+    @Param({"100000"})
+    public long count;
+
+    @Param({"1000"})
+    public int dataSize;
+
+    Cache<String, Measure> cache;
+    String data;
+
+    @Setup(Level.Trial)
+    public void generate() {
+      data = CacheBenchmark.generateData(dataSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void open() {
+      cache = CacheBenchmark.newCache(backend);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+      cache.close();
+    }
+  }
+
+  @Benchmark
+  public long putLoop(EmptyCache state) {
+    SortedIterator entries = new SortedIterator(state.count, state.data);
+    long count = 0;
+    while (entries.hasNext()) {
+      Map.Entry<String, Measure> entry = entries.next();
+      state.cache.put(entry.getKey(), entry.getValue());
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public long loadSorted(EmptyCache state) {
+    long loaded = ((SortedBulkLoader<String, Measure>) state.cache).loadSorted(new SortedIterator(state.count, state.data));
+    if (loaded != state.count) {
+      throw new IllegalStateException("Loaded " + loaded + " entries instead of " + state.count);
+    }
+    return loaded;
+  }
+
+  /**
+   * Keys are zero-padded so that their order is the order of the ids
+   */
+  private static class SortedIterator implements Iterator<Map.Entry<String, Measure>> {
+    private final long count;
+    private final String data;
+    private long next = 0;
+
+    private SortedIterator(long count, String data) {
+      this.count = count;
+      this.data = data;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < count;
+    }
+
+    @Override
+    public Map.Entry<String, Measure> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      long i = next++;
+      String key = String.format("key%012d", i);
+      return new AbstractMap.SimpleImmutableEntry<>(key, new Measure(key, data, i, new Date()));
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove not supported");
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+      .include(SortedLoadBenchmark.class.getSimpleName())
+      .build();
+    new Runner(options).run();
+  }
+}
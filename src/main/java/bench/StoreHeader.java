@@ -0,0 +1,104 @@
+package bench;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Header file written next to the files of a persistent cache when it is closed. It tells the format of the data,
+ * so that a cache is only reopened by code that reads the same format, and the size of the data files, so that
+ * files changed or truncated since the close are not reopened. The checksum only guards the header: the content of
+ * the data files is not checked, only their size.
+ * <p>
+ * The header is deleted when the cache is opened, so a process that stops without closing the cache leaves no
+ * header, and the data is rebuilt on the next start.
+ * </p>
+ */
+final class StoreHeader {
+
+  private static final int MAGIC = 0x42434831;
+
+  private final File file;
+  private final String format;
+  private final File[] dataFiles;
+
+  /**
+   * @param format backend, version of its format and settings that change how data is stored, like the page size
+   *               or the value compression
+   * @param dataFiles files or directories of the data, the header is stored next to the first one
+   */
+  StoreHeader(String format, File... dataFiles) {
+    this.file = new File(dataFiles[0].getPath() + ".header");
+    this.format = format;
+    this.dataFiles = dataFiles;
+  }
+
+  /**
+   * Checks the header left by the last close, then deletes it
+   *
+   * @return true if the data can be reopened, false if it must be rebuilt
+   */
+  boolean checkAndClear() {
+    if (!file.isFile()) {
+      return false;
+    }
+    boolean valid;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      valid = in.readInt() == MAGIC && format.equals(in.readUTF());
+      long dataSize = in.readLong();
+      valid = valid && in.readLong() == checksum(format, dataSize) && dataSize == dataSize();
+    } catch (IOException e) {
+      valid = false;
+    }
+    if (!file.delete()) {
+      throw new IllegalStateException("Fail to delete cache header " + file);
+    }
+    return valid;
+  }
+
+  /**
+   * Marks the data as cleanly closed
+   */
+  void write() {
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      long dataSize = dataSize();
+      out.writeInt(MAGIC);
+      out.writeUTF(format);
+      out.writeLong(dataSize);
+      out.writeLong(checksum(format, dataSize));
+    } catch (IOException e) {
+      throw new IllegalStateException("Fail to write cache header " + file, e);
+    }
+  }
+
+  private long dataSize() {
+    long size = 0;
+    for (File dataFile : dataFiles) {
+      if (dataFile.exists()) {
+        size += FileUtils.sizeOf(dataFile);
+      }
+    }
+    return size;
+  }
+
+  private static long checksum(String format, long dataSize) {
+    CRC32 crc = new CRC32();
+    crc.update(format.getBytes(StandardCharsets.UTF_8));
+    for (int i = 0; i < Long.BYTES; i++) {
+      crc.update((int) (dataSize >>> (i * 8)));
+    }
+    return crc.getValue();
+  }
+
+  @Override
+  public String toString() {
+    return file + " [" + format + "]";
+  }
+}
@@ -0,0 +1,235 @@
+package bench;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded on-heap tier in front of a disk-backed cache. Writes go through to the backend, reads are served
+ * from the heap when possible.
+ * <p>
+ * The tier is split into segments, each one with its own lock, LRU order and access frequency sketch. When a
+ * segment is full, a key read from the backend only replaces the least recently used entry if it has been accessed
+ * more often (TinyLFU admission), so that a scan of cold keys does not flush the hot ones.
+ * </p>
+ * <p>
+ * Backend writes and backend reads on a miss are done under the segment lock, so that a value loaded from the
+ * backend can not overwrite a more recent one in the tier.
+ * </p>
+ * <p>
+ * Values of the tier are shared between callers: a value returned by {@link #get(Object)} must be put back with
+ * {@link #put(Object, Serializable)} once modified.
+ * </p>
+ */
+public class TieredCache<K, V extends Serializable> implements Cache<K, V>, CacheDecorator, Instrumented {
+
+  private static final int DEFAULT_SEGMENTS = 64;
+
+  private final Cache<K, V> backend;
+  private final Segment<K, V>[] segments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * A tier smaller than the default number of segments has one segment per entry
+   */
+  public TieredCache(Cache<K, V> backend, int maximumSize) {
+    this(backend, maximumSize, Math.min(DEFAULT_SEGMENTS, maximumSize));
+  }
+
+  /**
+   * @param maximumSize number of entries of the tier, split between the segments, at least one per segment
+   */
+  public TieredCache(Cache<K, V> backend, int maximumSize, int segmentCount) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+    }
+    if (segmentCount < 1 || maximumSize < segmentCount) {
+      throw new IllegalArgumentException("Maximum size " + maximumSize + " must be at least the number of segments " + segmentCount);
+    }
+    this.backend = backend;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Segment<K, V>[] array = new Segment[segmentCount];
+    int segmentSize = maximumSize / segmentCount;
+    int remainder = maximumSize % segmentCount;
+    for (int i = 0; i < segmentCount; i++) {
+      array[i] = new Segment<>(i < remainder ? segmentSize + 1 : segmentSize, evictions);
+    }
+    this.segments = array;
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    if (backend instanceof Instrumented) {
+      ((Instrumented) backend).setListener(listener);
+    }
+  }
+
+  @Override
+  public Cache<K, V> backend() {
+    return backend;
+  }
+
+  @Override
+  public void close() {
+    for (Segment<K, V> segment : segments) {
+      segment.clear();
+    }
+    backend.close();
+  }
+
+  @Override
+  public TieredCache<K, V> put(K key, V value) {
+    segmentFor(key).write(key, value, backend);
+    return this;
+  }
+
+  /**
+   * Bulk writes only refresh the keys already on heap, they are not considered as accesses
+   */
+  @Override
+  public TieredCache<K, V> putAll(Map<K, V> entries) {
+    backend.putAll(entries);
+    for (Map.Entry<K, V> entry : entries.entrySet()) {
+      segmentFor(entry.getKey()).replace(entry.getKey(), entry.getValue());
+    }
+    return this;
+  }
+
+  @Override
+  public Iterable<V> values() {
+    return backend.values();
+  }
+
+  /**
+   * Served by the backend, which has all the writes
+   */
+  @Override
+  public Iterable<Map.Entry<K, V>> range(K fromKey, K toKey) {
+    return backend.range(fromKey, toKey);
+  }
+
+  /**
+   * Served by the backend, which has all the writes
+   */
+  @Override
+  public Iterable<Map.Entry<K, V>> prefix(String prefix) {
+    return backend.prefix(prefix);
+  }
+
+  @Override
+  public V get(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    V value = segment.read(key);
+    if (value != null) {
+      hits.incrementAndGet();
+      return value;
+    }
+    misses.incrementAndGet();
+    return segment.load(key, backend);
+  }
+
+  @Override
+  public boolean containsKey(K key) {
+    return segmentFor(key).contains(key) || backend.containsKey(key);
+  }
+
+  public long hitCount() {
+    return hits.get();
+  }
+
+  public long missCount() {
+    return misses.get();
+  }
+
+  public long evictionCount() {
+    return evictions.get();
+  }
+
+  public double hitRate() {
+    long requests = hits.get() + misses.get();
+    return requests == 0 ? 1.0 : (double) hits.get() / requests;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("hits=%d misses=%d evictions=%d hitRate=%.3f", hitCount(), missCount(), evictionCount(), hitRate());
+  }
+
+  private static class Segment<K, V extends Serializable> {
+    private final int maximumSize;
+    private final LinkedHashMap<K, V> entries;
+    private final FrequencySketch sketch;
+    private final AtomicLong evictions;
+
+    private Segment(int maximumSize, AtomicLong evictions) {
+      this.maximumSize = maximumSize;
+      this.entries = new LinkedHashMap<>(16, 0.75f, true);
+      this.sketch = new FrequencySketch(maximumSize);
+      this.evictions = evictions;
+    }
+
+    synchronized V read(K key) {
+      sketch.increment(key);
+      return entries.get(key);
+    }
+
+    synchronized boolean contains(K key) {
+      return entries.containsKey(key);
+    }
+
+    synchronized void write(K key, V value, Cache<K, V> backend) {
+      backend.put(key, value);
+      sketch.increment(key);
+      if (entries.containsKey(key)) {
+        entries.put(key, value);
+      } else {
+        doAdmit(key, value);
+      }
+    }
+
+    synchronized void replace(K key, V value) {
+      if (entries.containsKey(key)) {
+        entries.put(key, value);
+      }
+    }
+
+    synchronized V load(K key, Cache<K, V> backend) {
+      V value = entries.get(key);
+      if (value == null) {
+        value = backend.get(key);
+        if (value != null) {
+          doAdmit(key, value);
+        }
+      }
+      return value;
+    }
+
+    private void doAdmit(K key, V value) {
+      if (entries.size() < maximumSize) {
+        entries.put(key, value);
+        return;
+      }
+      Iterator<K> lru = entries.keySet().iterator();
+      K victim = lru.next();
+      if (sketch.frequency(key) > sketch.frequency(victim)) {
+        lru.remove();
+        evictions.incrementAndGet();
+        entries.put(key, value);
+      }
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+  }
+}
@@ -0,0 +1,349 @@
+package bench;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * Write-behind buffer in front of a cache. Writes are kept on heap, a write replacing the pending one of the same
+ * key, and reads are served from the buffer before the backend.
+ * <p>
+ * A background thread stores the pending writes into the backend, in key order and in batches of
+ * {@code maxPendingWrites}, every {@code flushIntervalMs} or as soon as {@code maxPendingWrites} keys are pending.
+ * When the backend is slower than the writers and twice as many keys are pending, writers flush the buffer
+ * themselves. Flushes are serialized, so that the backend has a single writer at a time.
+ * </p>
+ * <p>
+ * Scans flush the buffer first, so that they see all the writes. Writes fail once the cache is closed.
+ * </p>
+ * <p>
+ * The flush lag is the time between the first pending write of a key and its store into the backend. The
+ * coalescing ratio is the part of the writes replaced before they were stored.
+ * </p>
+ */
+public class WriteBehindCache<K, V extends Serializable> implements Cache<K, V>, CacheDecorator, Instrumented {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteBehindCache.class);
+
+  private final Cache<K, V> backend;
+  private final int maxPendingWrites;
+  private final ConcurrentMap<K, Pending<V>> pendingWrites = new ConcurrentHashMap<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final Object flushLock = new Object();
+  private final ScheduledExecutorService flusher;
+  private final Runnable backgroundFlush = new Runnable() {
+    @Override
+    public void run() {
+      flushRequested.set(false);
+      try {
+        flush();
+      } catch (RuntimeException e) {
+        // writes stay pending and are retried by the next flush
+        if (flushFailures.incrementAndGet() == 1) {
+          LOG.warn("Fail to flush pending writes, they are retried by the next flushes", e);
+        }
+      }
+    }
+  };
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong coalescedWrites = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong flushedWrites = new AtomicLong();
+  private final AtomicLong flushFailures = new AtomicLong();
+  private final Histogram flushLags = new ConcurrentHistogram(3);
+  private volatile CacheListener listener = CacheListener.NONE;
+  private volatile boolean closed;
+  /**
+   * Shared by the writes, held exclusively to close the cache
+   */
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+  /**
+   * @param maxPendingWrites number of pending keys that triggers a flush, also the size of the batches
+   * @param flushIntervalMs maximum delay between two flushes
+   */
+  public WriteBehindCache(Cache<K, V> backend, int maxPendingWrites, long flushIntervalMs) {
+    this.backend = backend;
+    this.maxPendingWrites = maxPendingWrites;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "write-behind-flusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(backgroundFlush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void setListener(CacheListener listener) {
+    this.listener = listener;
+    if (backend instanceof Instrumented) {
+      ((Instrumented) backend).setListener(listener);
+    }
+  }
+
+  @Override
+  public Cache<K, V> backend() {
+    return backend;
+  }
+
+  /**
+   * Stores the pending writes, then closes the backend. Writes in progress complete first and are stored.
+   */
+  @Override
+  public void close() {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while closing the cache", e);
+    }
+    flush();
+    backend.close();
+  }
+
+  @Override
+  public WriteBehindCache<K, V> put(K key, V value) {
+    closeLock.readLock().lock();
+    try {
+      checkOpen();
+      write(key, value);
+      afterWrites();
+    } finally {
+      closeLock.readLock().unlock();
+    }
+    return this;
+  }
+
+  @Override
+  public WriteBehindCache<K, V> putAll(Map<K, V> entries) {
+    closeLock.readLock().lock();
+    try {
+      checkOpen();
+      for (Map.Entry<K, V> entry : entries.entrySet()) {
+        write(entry.getKey(), entry.getValue());
+      }
+      afterWrites();
+    } finally {
+      closeLock.readLock().unlock();
+    }
+    return this;
+  }
+
+  /**
+   * Called with the read lock of {@link #closeLock}, so that the final flush of {@link #close()} sees the write
+   */
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Cache is closed");
+    }
+  }
+
+  /**
+   * The lag is counted from the first write of the key which is not stored yet
+   */
+  private void write(K key, final V value) {
+    final long now = System.nanoTime();
+    pendingWrites.compute(key, new BiFunction<K, Pending<V>, Pending<V>>() {
+      @Override
+      public Pending<V> apply(K k, Pending<V> replaced) {
+        if (replaced == null) {
+          pendingCount.incrementAndGet();
+          return new Pending<>(value, now);
+        }
+        coalescedWrites.incrementAndGet();
+        return new Pending<>(value, replaced.firstWriteNanos);
+      }
+    });
+    writes.incrementAndGet();
+  }
+
+  private void afterWrites() {
+    int pending = pendingCount.get();
+    if (pending >= 2 * maxPendingWrites) {
+      flush();
+    } else if (pending >= maxPendingWrites && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(backgroundFlush);
+    }
+  }
+
+  /**
+   * Stores all the pending writes into the backend, in key order
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      if (pendingWrites.isEmpty()) {
+        return;
+      }
+      Map<K, V> batch = new LinkedHashMap<>();
+      List<Pending<V>> batchWrites = new ArrayList<>();
+      for (K key : Keys.sorted(pendingWrites.keySet())) {
+        Pending<V> pending = pendingWrites.get(key);
+        if (pending != null) {
+          batch.put(key, pending.value);
+          batchWrites.add(pending);
+          if (batch.size() == maxPendingWrites) {
+            store(batch, batchWrites);
+          }
+        }
+      }
+      if (!batch.isEmpty()) {
+        store(batch, batchWrites);
+      }
+      flushes.incrementAndGet();
+      listener.event("writeBehindFlush");
+    }
+  }
+
+  /**
+   * Writes replaced since the batch was built stay pending
+   */
+  private void store(Map<K, V> batch, List<Pending<V>> batchWrites) {
+    backend.putAll(batch);
+    long now = System.nanoTime();
+    int i = 0;
+    for (K key : batch.keySet()) {
+      Pending<V> pending = batchWrites.get(i++);
+      flushLags.recordValue(Math.max(0, now - pending.firstWriteNanos));
+      if (pendingWrites.remove(key, pending)) {
+        pendingCount.decrementAndGet();
+      } else {
+        restart(key, pending, now);
+      }
+    }
+    flushedWrites.addAndGet(batch.size());
+    batch.clear();
+    batchWrites.clear();
+  }
+
+  /**
+   * The write which replaced a stored one during the flush was counted as coalesced, with the lag of the stored
+   * one. It is a new pending write, whose lag starts at the store.
+   */
+  private void restart(K key, final Pending<V> stored, final long storeNanos) {
+    pendingWrites.computeIfPresent(key, new BiFunction<K, Pending<V>, Pending<V>>() {
+      @Override
+      public Pending<V> apply(K k, Pending<V> current) {
+        if (current.firstWriteNanos != stored.firstWriteNanos) {
+          return current;
+        }
+        coalescedWrites.decrementAndGet();
+        return new Pending<>(current.value, storeNanos);
+      }
+    });
+  }
+
+  @Override
+  public Iterable<V> values() {
+    flush();
+    return backend.values();
+  }
+
+  @Override
+  public Iterable<Map.Entry<K, V>> range(K fromKey, K toKey) {
+    flush();
+    return backend.range(fromKey, toKey);
+  }
+
+  @Override
+  public Iterable<Map.Entry<K, V>> prefix(String prefix) {
+    flush();
+    return backend.prefix(prefix);
+  }
+
+  @Override
+  public V get(K key) {
+    Pending<V> pending = pendingWrites.get(key);
+    return pending != null ? pending.value : backend.get(key);
+  }
+
+  @Override
+  public boolean containsKey(K key) {
+    return pendingWrites.containsKey(key) || backend.containsKey(key);
+  }
+
+  public int pendingCount() {
+    return pendingCount.get();
+  }
+
+  public long writeCount() {
+    return writes.get();
+  }
+
+  public long coalescedCount() {
+    return coalescedWrites.get();
+  }
+
+  public long flushCount() {
+    return flushes.get();
+  }
+
+  public long flushedCount() {
+    return flushedWrites.get();
+  }
+
+  public long flushFailureCount() {
+    return flushFailures.get();
+  }
+
+  /**
+   * Part of the writes which were replaced by a later write of the same key before being stored
+   */
+  public double coalescingRatio() {
+    long count = writes.get();
+    return count == 0 ? 0.0 : (double) coalescedWrites.get() / count;
+  }
+
+  /**
+   * Flush lag of the stored writes at the given percentile, in milliseconds
+   */
+  public double flushLagMillis(double percentile) {
+    return flushLags.getValueAtPercentile(percentile) / 1_000_000.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("writes=%d coalesced=%d flushes=%d stored=%d pending=%d failures=%d coalescingRatio=%.3f lag.p50=%.1fms lag.p99=%.1fms",
+      writeCount(), coalescedCount(), flushCount(), flushedCount(), pendingCount(), flushFailureCount(), coalescingRatio(), flushLagMillis(50),
+      flushLagMillis(99));
+  }
+
+  private static class Pending<V> {
+    private final V value;
+    private final long firstWriteNanos;
+
+    private Pending(V value, long firstWriteNanos) {
+      this.value = value;
+      this.firstWriteNanos = firstWriteNanos;
+    }
+  }
+}